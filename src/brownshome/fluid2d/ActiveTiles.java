@@ -0,0 +1,141 @@
+package brownshome.fluid2d;
+
+/**
+ * Tracks which tiles of the grid have anything happening in them, so that the advection and the iterative solvers can
+ * skip the rest. A tile is busy if any of its cells has a speed, dye gradient or pressure residual above the thresholds.
+ * The tiles next to a busy tile are active as well, so that flow leaving a busy tile is picked up in the next tick. This
+ * relies on the fluid moving less than a tile in each tick, which holds for any Courant number below the tile size.
+ * <p>
+ * The halo is the active tiles and the tiles next to them. The first step of MacCormack advection is run over the halo,
+ * as the second step samples it around the edges of the active tiles.
+ */
+final class ActiveTiles {
+	/** The default width and height of a tile in cells of the velocity grid */
+	static final int TILE_SIZE = 16;
+
+	/** The width and height of a tile in cells of the velocity grid */
+	final int tileSize;
+	final int tilesX;
+	final int tilesY;
+
+	private final double speedThreshold;
+	private final double gradientThreshold;
+	private final double residualThreshold;
+
+	private final boolean[] busy;
+	private final int[] active;
+	private final int[] halo;
+	private int activeCount = 0;
+	private int haloCount = 0;
+
+	ActiveTiles(int gridWidth, int gridHeight, int tileSize, double speedThreshold, double gradientThreshold, double residualThreshold) {
+		this.tileSize = tileSize;
+		this.speedThreshold = speedThreshold;
+		this.gradientThreshold = gradientThreshold;
+		this.residualThreshold = residualThreshold;
+
+		tilesX = (gridWidth - 1) / tileSize + 1;
+		tilesY = (gridHeight - 1) / tileSize + 1;
+
+		busy = new boolean[tilesX * tilesY];
+		active = new int[tilesX * tilesY];
+		halo = new int[tilesX * tilesY];
+	}
+
+	/** Finds which of the tiles in rows [startRow, endRow) are busy */
+	void measure(FluidCellArray array, DyeField dye, int gridWidth, int gridHeight, int startRow, int endRow) {
+		double speedSq = speedThreshold * speedThreshold;
+		int dyeTile = tileSize * dye.scale;
+
+		for(int row = startRow; row < endRow; row++) {
+			for(int column = 0; column < tilesX; column++) {
+				busy[column + row * tilesX] = isBusy(array, gridWidth, gridHeight, column, row, speedSq)
+						|| hasGradient(dye, column * dyeTile, row * dyeTile, dyeTile);
+			}
+		}
+	}
+
+	private boolean isBusy(FluidCellArray array, int gridWidth, int gridHeight, int column, int row, double speedSq) {
+		int endX = Math.min(gridWidth, (column + 1) * tileSize);
+		int endY = Math.min(gridHeight, (row + 1) * tileSize);
+
+		for(int y = row * tileSize; y < endY; y++) {
+			for(int x = column * tileSize; x < endX; x++) {
+				if(array.velocitySq(x, y) > speedSq || array.pressureResidual(x, y) > residualThreshold) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private boolean hasGradient(DyeField dye, int startX, int startY, int size) {
+		int endX = Math.min(dye.width, startX + size);
+		int endY = Math.min(dye.height, startY + size);
+
+		for(int y = startY; y < endY; y++) {
+			for(int x = startX; x < endX; x++) {
+				if(dye.gradient(x, y) > gradientThreshold) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/** Rebuilds the active tiles and the halo from the busy tiles */
+	void update() {
+		boolean[] activeTiles = grow(busy);
+		activeCount = list(activeTiles, active);
+		haloCount = list(grow(activeTiles), halo);
+	}
+
+	/** Finds the given tiles and their neighbours */
+	private boolean[] grow(boolean[] tiles) {
+		boolean[] grown = new boolean[tiles.length];
+
+		for(int row = 0; row < tilesY; row++) {
+			for(int column = 0; column < tilesX; column++) {
+				if(tiles[column + row * tilesX]) {
+					for(int y = Math.max(0, row - 1); y <= Math.min(tilesY - 1, row + 1); y++) {
+						for(int x = Math.max(0, column - 1); x <= Math.min(tilesX - 1, column + 1); x++) {
+							grown[x + y * tilesX] = true;
+						}
+					}
+				}
+			}
+		}
+
+		return grown;
+	}
+
+	private static int list(boolean[] tiles, int[] out) {
+		int count = 0;
+
+		for(int tile = 0; tile < tiles.length; tile++) {
+			if(tiles[tile]) {
+				out[count++] = tile;
+			}
+		}
+
+		return count;
+	}
+
+	int activeCount() {
+		return activeCount;
+	}
+
+	int active(int i) {
+		return active[i];
+	}
+
+	int haloCount() {
+		return haloCount;
+	}
+
+	int halo(int i) {
+		return halo[i];
+	}
+}
@@ -0,0 +1,217 @@
+package brownshome.fluid2d;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.atomic.DoubleAccumulator;
+
+/**
+ * A variant of {@link FluidSimulation} that runs on a {@link QuadtreeGrid} rather than a uniform grid. The grid is on
+ * the finest level next to the walls and the obstacle, and elsewhere it is refined wherever the vorticity multiplied by
+ * the size of a cell is more than a fraction of the fastest velocity. The grid is rebuilt every few ticks as the flow
+ * moves. This simulation only has the velocity and pressure fields, there is no dye. It has the same obstacle and forcing
+ * as FluidSimulation, and runs its passes on the same {@link Workers}.
+ */
+public class AdaptiveFluidSimulation {
+	/** The number of ticks between rebuilding the grid */
+	private static final int REMESH_INTERVAL = 8;
+
+	/** Cells within this many cells of the finest level of a solid are kept on the finest level */
+	private static final int SOLID_MARGIN = 4;
+
+	private static final double COURANT_NUMBER = 2.0;
+
+	final int gridWidth;
+	final int gridHeight;
+	private final double viscocity;
+	private final int maxCellSize;
+	private final double refinement;
+
+	private QuadtreeGrid grid;
+	private double timestep;
+	private long tickCount = 0;
+	private int colourMode = 1;
+
+	private final Workers workers;
+
+	/**
+	 * Creates a simulation with no cells larger than maxCellSize, which must be a power of two. A cell is split if its
+	 * vorticity multiplied by its size is more than refinement times the fastest velocity.
+	 */
+	public AdaptiveFluidSimulation(int gridWidth, int gridHeight, double viscocity, int granularity, int maxCellSize, double refinement) {
+		this(gridWidth, gridHeight, viscocity, new Tuning(Tuning.DEFAULT_THREADS, granularity, ActiveTiles.TILE_SIZE), maxCellSize, refinement);
+	}
+
+	/** Creates a simulation that runs with the thread count and granularity of tuning, the tile size is not used */
+	public AdaptiveFluidSimulation(int gridWidth, int gridHeight, double viscocity, Tuning tuning, int maxCellSize, double refinement) {
+		this.gridWidth = gridWidth;
+		this.gridHeight = gridHeight;
+		this.viscocity = viscocity;
+		this.maxCellSize = maxCellSize;
+		this.refinement = refinement;
+
+		grid = new QuadtreeGrid(gridWidth, gridHeight, maxCellSize, this::nearSolid);
+		workers = new Workers(tuning);
+	}
+
+	/** Stops the worker threads once they are idle, the simulation cannot be ticked afterwards */
+	void shutdown() {
+		workers.shutdown();
+	}
+
+	/** The number of cells in the grid, this is at most gridWidth * gridHeight */
+	public int cellCount() {
+		return grid.leafCount();
+	}
+
+	public long tickCount() {
+		return tickCount;
+	}
+
+	private boolean nearSolid(int x, int y, int size) {
+		return FluidCellArray.nearSolid(x - SOLID_MARGIN, y - SOLID_MARGIN, x + size + SOLID_MARGIN, y + size + SOLID_MARGIN, gridWidth, gridHeight);
+	}
+
+	public void tick() {
+		QuadtreeGrid grid = this.grid;
+		int leaves = grid.leafCount();
+
+		double maxVelocity = Math.sqrt(maxVelocitySq(grid));
+		timestep = maxVelocity == 0 ? 0.01 : COURANT_NUMBER / maxVelocity;
+
+		foreach(leaves, leaf -> grid.advection(leaf, timestep));
+
+		synchronized(this) {
+			foreach(leaves, grid::pushVelocityChange);
+		}
+
+		for(int i = 0; i < FluidSimulation.DIFFUSION_ITERATIONS; i++) {
+			foreach(leaves, leaf -> grid.performDiffusionIteration(leaf, viscocity, timestep));
+			foreach(leaves, grid::pushVelocityChange);
+		}
+
+		for(int i = 0; i < FluidSimulation.PRESSURE_ITERATIONS; i++) {
+			foreach(leaves, grid::calculatePressure);
+			foreach(leaves, grid::pushPressureChange);
+		}
+
+		foreach(leaves, grid::subtractPressureGradient);
+		foreach(leaves, grid::pushVelocityChange);
+		foreach(leaves, grid::applyForce);
+
+		synchronized(this) {
+			foreach(leaves, grid::pushVelocityChange);
+		}
+
+		tickCount++;
+
+		if(tickCount % REMESH_INTERVAL == 0) {
+			remesh(Math.sqrt(maxVelocitySq(grid)));
+		}
+	}
+
+	private double maxVelocitySq(QuadtreeGrid grid) {
+		DoubleAccumulator max = new DoubleAccumulator(Math::max, 0.0);
+
+		workers.parallelRange(grid.leafCount(), (start, end) -> {
+			double blockMax = 0.0;
+
+			for(int leaf = start; leaf < end; leaf++) {
+				blockMax = Math.max(blockMax, grid.velocitySq(leaf));
+			}
+
+			max.accumulate(blockMax);
+		});
+
+		return max.get();
+	}
+
+	/** Builds a new grid from the current velocity, and copies the fields onto it */
+	private void remesh(double maxVelocity) {
+		QuadtreeGrid old = grid;
+		double threshold = refinement * maxVelocity;
+
+		QuadtreeGrid remeshed = new QuadtreeGrid(gridWidth, gridHeight, maxCellSize, (x, y, size) -> {
+			if(nearSolid(x, y, size)) {
+				return true;
+			}
+
+			//The vorticity multiplied by the size of the region, from the old grid
+			double d = size * 0.5;
+			double cx = x + (size - 1) * 0.5;
+			double cy = y + (size - 1) * 0.5;
+
+			double dVy = old.sample(cx + d, cy, FluidCellArray.VELOCITY_OFFSET + 1) - old.sample(cx - d, cy, FluidCellArray.VELOCITY_OFFSET + 1);
+			double dVx = old.sample(cx, cy + d, FluidCellArray.VELOCITY_OFFSET) - old.sample(cx, cy - d, FluidCellArray.VELOCITY_OFFSET);
+
+			return Math.abs(dVy - dVx) > threshold;
+		});
+
+		foreach(remeshed.leafCount(), leaf -> {
+			double x = remeshed.centreX(leaf);
+			double y = remeshed.centreY(leaf);
+
+			remeshed.setValue(leaf, FluidCellArray.VELOCITY_OFFSET, old.sample(x, y, FluidCellArray.VELOCITY_OFFSET));
+			remeshed.setValue(leaf, FluidCellArray.VELOCITY_OFFSET + 1, old.sample(x, y, FluidCellArray.VELOCITY_OFFSET + 1));
+			remeshed.setValue(leaf, FluidCellArray.PRESSURE_OFFSET, old.sample(x, y, FluidCellArray.PRESSURE_OFFSET));
+		});
+
+		synchronized(this) {
+			grid = remeshed;
+		}
+	}
+
+	/** Samples a field at the point (x, y) of the finest grid using bilinear interpolation */
+	public synchronized double probe(Field field, double x, double y) {
+		return grid.sample(x, y, field.offset);
+	}
+
+	/** Draws the velocity or pressure, with each cell drawn as a flat square so that the refinement can be seen */
+	public void paint(Graphics g, Dimension dimension) {
+		BufferedImage image = new BufferedImage(dimension.width, dimension.height, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		int cells;
+
+		synchronized(this) {
+			QuadtreeGrid grid = this.grid;
+			cells = grid.leafCount();
+			double cellsPerPixelX = (double) gridWidth / dimension.width;
+			double cellsPerPixelY = (double) gridHeight / dimension.height;
+
+			foreach(dimension.height, y -> {
+				for(int x = 0; x < dimension.width; x++) {
+					int leaf = grid.locate((x + 0.5) * cellsPerPixelX - 0.5, (y + 0.5) * cellsPerPixelY - 0.5);
+					pixels[x + y * dimension.width] = grid.getARGB(leaf, colourMode);
+				}
+			});
+		}
+
+		g.drawImage(image, 0, 0, null);
+
+		g.setFont(new Font("Dialog", Font.BOLD, 20));
+		g.setColor(Color.WHITE);
+		g.drawString(String.format("Cells: %d", cells), 20, 30);
+	}
+
+	/** Switches between showing the velocity and the pressure */
+	public void switchColourMode() {
+		colourMode = colourMode == 1 ? 2 : 1;
+	}
+
+	@FunctionalInterface
+	private interface LeafCall {
+		void call(int leaf);
+	}
+
+	/** Runs func on every index in [0, length) on the workers, waiting for all of them to finish */
+	private void foreach(int length, LeafCall func) {
+		workers.parallelRange(length, (start, end) -> {
+			for(int i = start; i < end; i++) {
+				func.call(i);
+			}
+		});
+	}
+}
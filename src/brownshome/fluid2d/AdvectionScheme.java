@@ -0,0 +1,21 @@
+package brownshome.fluid2d;
+
+/** The methods that can be used to move the velocity and scalars through the grid */
+public enum AdvectionScheme {
+	/** First order semi-Lagrangian advection, this is cheap but smears out detail */
+	SEMI_LAGRANGIAN(2.0),
+	
+	/** 
+	 * MacCormack advection, this corrects the semi-Lagrangian step by tracing the result backwards and subtracting half 
+	 * of the error. The result is clamped to the values around the sample point so that it stays stable. This is second
+	 * order, so larger timesteps can be used for the same accuracy.
+	 */
+	MAC_CORMACK(6.0);
+	
+	/** The default number of cells that the fastest fluid is allowed to move in a single tick */
+	final double courantNumber;
+	
+	AdvectionScheme(double courantNumber) {
+		this.courantNumber = courantNumber;
+	}
+}
@@ -0,0 +1,60 @@
+package brownshome.fluid2d;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/** Stores a grid that fits in a single array, so every index is in the first band */
+final class ArrayCellStorage extends CellStorage {
+	private final double[] data;
+
+	ArrayCellStorage(int width, int height, int cellSize) {
+		super(width, height, cellSize, MAX_ARRAY_SIZE);
+
+		data = new double[bandSize(0)];
+	}
+
+	private ArrayCellStorage(ArrayCellStorage storage) {
+		super(storage.width, storage.height, storage.cellSize, MAX_ARRAY_SIZE);
+
+		data = storage.data.clone();
+	}
+
+	@Override
+	long index(int x, int y) {
+		return (y * width + x) * cellSize;
+	}
+
+	@Override
+	double get(long index) {
+		return data[(int) index];
+	}
+
+	@Override
+	void set(long index, double value) {
+		data[(int) index] = value;
+	}
+
+	@Override
+	void clear(int startRow, int endRow) {
+		Arrays.fill(data, startRow * width * cellSize, endRow * width * cellSize, 0.0);
+	}
+
+	@Override
+	DoubleBuffer band(int band) {
+		return DoubleBuffer.wrap(data);
+	}
+
+	@Override
+	CellStorage duplicate() {
+		return new ArrayCellStorage(this);
+	}
+
+	@Override
+	void copy(long from, CellStorage target, long to, int count) {
+		if(target instanceof ArrayCellStorage) {
+			System.arraycopy(data, (int) from, ((ArrayCellStorage) target).data, (int) to, count);
+		} else {
+			super.copy(from, target, to, count);
+		}
+	}
+}
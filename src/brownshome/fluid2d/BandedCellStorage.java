@@ -0,0 +1,58 @@
+package brownshome.fluid2d;
+
+import java.nio.DoubleBuffer;
+
+/** Stores each band of a grid in its own array, this is used for grids that are too large for a single array */
+final class BandedCellStorage extends CellStorage {
+	/** The most values that are stored in a band */
+	private static final int MAX_BAND_SIZE = 1 << 20;
+
+	private final double[][] data;
+
+	BandedCellStorage(int width, int height, int cellSize) {
+		super(width, height, cellSize, MAX_BAND_SIZE);
+
+		data = new double[bands][];
+		for(int band = 0; band < bands; band++) {
+			data[band] = new double[bandSize(band)];
+		}
+	}
+
+	private BandedCellStorage(BandedCellStorage storage) {
+		super(storage.width, storage.height, storage.cellSize, MAX_BAND_SIZE);
+
+		data = new double[bands][];
+		for(int band = 0; band < bands; band++) {
+			data[band] = storage.data[band].clone();
+		}
+	}
+
+	@Override
+	double get(long index) {
+		return data[(int) (index >>> 32)][(int) index];
+	}
+
+	@Override
+	void set(long index, double value) {
+		data[(int) (index >>> 32)][(int) index] = value;
+	}
+
+	@Override
+	DoubleBuffer band(int band) {
+		return DoubleBuffer.wrap(data[band]);
+	}
+
+	@Override
+	CellStorage duplicate() {
+		return new BandedCellStorage(this);
+	}
+
+	@Override
+	void copy(long from, CellStorage target, long to, int count) {
+		if(target instanceof BandedCellStorage) {
+			System.arraycopy(data[(int) (from >>> 32)], (int) from, ((BandedCellStorage) target).data[(int) (to >>> 32)], (int) to, count);
+		} else {
+			super.copy(from, target, to, count);
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package brownshome.fluid2d;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * The values of a grid of cells, with cellSize values per cell. The grid is stored as bands of whole rows so that no
+ * single array has to hold the whole grid, which would overflow an int index for grids of more than 2^31 values.
+ * <p>
+ * An index holds the band in its upper 32 bits and the position in that band in its lower 32 bits. The values of a cell
+ * are always in the same band, so offsets of less than cellSize can be added to an index.
+ */
+abstract class CellStorage {
+	/** The most values that can be stored in a single array */
+	static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	final int width;
+	final int height;
+	final int cellSize;
+
+	/** The number of rows in each band, this is a power of two */
+	final int bandRows;
+	private final int bandShift;
+	final int bands;
+
+	/** Creates storage with bands of as many rows as fit in maxBandSize values, or a single band if the whole grid fits */
+	CellStorage(int width, int height, int cellSize, int maxBandSize) {
+		this.width = width;
+		this.height = height;
+		this.cellSize = cellSize;
+
+		long rowSize = (long) width * cellSize;
+		if(rowSize > maxBandSize) {
+			throw new IllegalArgumentException(String.format("A row of %d cells is too large to store", width));
+		}
+
+		if(rowSize * height <= maxBandSize) {
+			bandShift = 32 - Integer.numberOfLeadingZeros(height - 1);
+		} else {
+			bandShift = 31 - Integer.numberOfLeadingZeros((int) (maxBandSize / rowSize));
+		}
+
+		bandRows = 1 << bandShift;
+		bands = (height - 1) / bandRows + 1;
+	}
+
+	/** 
+	 * Creates storage for a grid. Heap storage is a single array unless the grid is too large for one, and starts as zero.
+	 * Off heap storage is left untouched, so every row must be cleared or written before it is read. This lets the pages
+	 * of each row be placed by the first thread to write them.
+	 */
+	static CellStorage allocate(int width, int height, int cellSize, StorageMode mode) {
+		if(mode == StorageMode.OFF_HEAP) {
+			return new OffHeapCellStorage(width, height, cellSize);
+		} else if((long) width * height * cellSize <= MAX_ARRAY_SIZE && height <= 1 << 30) {
+			return new ArrayCellStorage(width, height, cellSize);
+		} else {
+			return new BandedCellStorage(width, height, cellSize);
+		}
+	}
+
+	/** The index of the first value of the cell (x, y), with no bounds checks */
+	long index(int x, int y) {
+		return (long) (y >>> bandShift) << 32 | ((y & bandRows - 1) * width + x) * cellSize;
+	}
+
+	/** The index of the first value of the cell (x, y), clamping to the edge of the grid */
+	final long clampedIndex(int x, int y) {
+		if(x < 0) {
+			x = 0;
+		} else if(x >= width) {
+			x = width - 1;
+		}
+
+		if(y < 0) {
+			y = 0;
+		} else if(y >= height) {
+			y = height - 1;
+		}
+
+		return index(x, y);
+	}
+
+	/** The number of values in the grid */
+	final long size() {
+		return (long) width * height * cellSize;
+	}
+
+	/** The number of values in a band */
+	final int bandSize(int band) {
+		return Math.min(bandRows, height - band * bandRows) * width * cellSize;
+	}
+
+	abstract double get(long index);
+
+	abstract void set(long index, double value);
+
+	/** A view of the values in a band, positioned at the start of the band */
+	abstract DoubleBuffer band(int band);
+
+	/** A copy of this storage, with the same layout */
+	abstract CellStorage duplicate();
+
+	/** Sets every value in rows [startRow, endRow) to zero */
+	void clear(int startRow, int endRow) {
+		int rowSize = width * cellSize;
+
+		for(int y = startRow; y < endRow; y++) {
+			long index = index(0, y);
+
+			for(int i = 0; i < rowSize; i++) {
+				set(index + i, 0.0);
+			}
+		}
+	}
+
+	/** Frees any memory that is not managed by the garbage collector, the storage must not be used afterwards */
+	void free() { }
+
+	/** Copies count values starting at index from into target starting at index to */
+	void copy(long from, CellStorage target, long to, int count) {
+		for(int i = 0; i < count; i++) {
+			target.set(to + i, get(from + i));
+		}
+	}
+}
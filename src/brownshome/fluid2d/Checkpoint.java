@@ -0,0 +1,322 @@
+package brownshome.fluid2d;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The binary checkpoint format. The file starts with a little endian header describing the simulation, followed by the
+ * velocity grid and then the dye grid, each stored exactly as they are laid out in memory. The grids are copied in and
+ * out of the file through memory mappings so that there is no intermediate buffer.
+ */
+final class Checkpoint {
+	private static final int MAGIC = 0x50434C46; //FLCP
+	static final int VERSION = 1;
+
+	/** The grid data starts on a boundary of this many bytes */
+	private static final int DATA_ALIGNMENT = 64;
+
+	/** The largest region that is mapped at once, this must be a multiple of 8 */
+	private static final long MAX_MAPPING = 1L << 30;
+
+	private static final int FIXED_HEADER_SIZE = Integer.BYTES * 9 + Double.BYTES * 3 + Long.BYTES;
+
+	/** Unmaps a mapping straight away rather than when it is collected, this is null if the JVM does not support it */
+	private static final Unmapper UNMAPPER = unmapper();
+
+	int gridWidth;
+	int gridHeight;
+	int dyeScale;
+	String[] scalars;
+	AdvectionScheme advectionScheme;
+	boolean fixedTimestep;
+	double viscocity;
+	double timestep;
+	double courantNumber;
+	long tickCount;
+
+	CellStorage velocity;
+	CellStorage dye;
+
+	/** 
+	 * Writes the checkpoint to a temporary file and then moves it over path, so that a crash never leaves a partial
+	 * checkpoint. The whole file is forced to the disk and unmapped before it is moved, as a mapped file cannot be moved
+	 * on some platforms.
+	 */
+	void write(Path path) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		ByteBuffer header = header();
+
+		try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			while(header.hasRemaining()) {
+				channel.write(header);
+			}
+
+			long position = header.capacity();
+			position = transfer(channel, position, velocity, true);
+			transfer(channel, position, dye, true);
+
+			channel.force(true);
+		}
+
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** 
+	 * Reads the header of a checkpoint, leaving the channel positioned at the start of the grid data. Every field is
+	 * checked, and the file must be large enough to hold the grids it describes, so that a corrupt header is never used to
+	 * size the simulation.
+	 */
+	static Checkpoint readHeader(FileChannel channel) throws IOException {
+		ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, fixed);
+		fixed.flip();
+
+		if(fixed.getInt() != MAGIC) {
+			throw new IOException("Not a checkpoint file");
+		}
+
+		int version = fixed.getInt();
+		if(version != VERSION) {
+			throw new IOException(String.format("Unsupported checkpoint version %d, expected %d", version, VERSION));
+		}
+
+		Checkpoint checkpoint = new Checkpoint();
+		checkpoint.gridWidth = fixed.getInt();
+		checkpoint.gridHeight = fixed.getInt();
+
+		if(checkpoint.gridWidth < 1 || checkpoint.gridHeight < 1) {
+			throw new IOException(String.format("Invalid checkpoint grid size %dx%d", checkpoint.gridWidth, checkpoint.gridHeight));
+		}
+
+		int cellSize = fixed.getInt();
+		if(cellSize != FluidCellArray.DATA_SIZE) {
+			throw new IOException(String.format("Checkpoint has %d values per cell, expected %d", cellSize, FluidCellArray.DATA_SIZE));
+		}
+
+		checkpoint.dyeScale = fixed.getInt();
+		if(checkpoint.dyeScale < 1 || (long) checkpoint.gridWidth * checkpoint.dyeScale > Integer.MAX_VALUE
+				|| (long) checkpoint.gridHeight * checkpoint.dyeScale > Integer.MAX_VALUE) {
+			throw new IOException("Invalid checkpoint dye scale " + checkpoint.dyeScale);
+		}
+
+		//Each name takes at least its length
+		int scalarCount = fixed.getInt();
+		if(scalarCount < 0 || scalarCount > (channel.size() - FIXED_HEADER_SIZE) / Integer.BYTES) {
+			throw new IOException("Invalid checkpoint scalar count " + scalarCount);
+		}
+
+		int scheme = fixed.getInt();
+		if(scheme < 0 || scheme >= AdvectionScheme.values().length) {
+			throw new IOException("Unknown checkpoint advection scheme " + scheme);
+		}
+
+		int fixedTimestep = fixed.getInt();
+		if(fixedTimestep != 0 && fixedTimestep != 1) {
+			throw new IOException("Invalid checkpoint timestep flag " + fixedTimestep);
+		}
+
+		checkpoint.scalars = new String[scalarCount];
+		checkpoint.advectionScheme = AdvectionScheme.values()[scheme];
+		checkpoint.fixedTimestep = fixedTimestep != 0;
+		checkpoint.viscocity = readParameter(fixed, "viscocity");
+		checkpoint.timestep = readParameter(fixed, "timestep");
+		checkpoint.courantNumber = readParameter(fixed, "Courant number");
+		checkpoint.tickCount = fixed.getLong();
+
+		if(checkpoint.tickCount < 0) {
+			throw new IOException("Invalid checkpoint tick count " + checkpoint.tickCount);
+		}
+
+		for(int i = 0; i < checkpoint.scalars.length; i++) {
+			ByteBuffer length = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, length);
+
+			int nameLength = length.getInt(0);
+			if(nameLength < 0 || nameLength > channel.size() - channel.position()) {
+				throw new IOException("Invalid checkpoint scalar name length " + nameLength);
+			}
+
+			ByteBuffer name = ByteBuffer.allocate(nameLength);
+			readFully(channel, name);
+			checkpoint.scalars[i] = new String(name.array(), StandardCharsets.UTF_8);
+		}
+
+		channel.position(align(channel.position()));
+
+		long expected;
+		try {
+			long velocityBytes = gridBytes(checkpoint.gridWidth, checkpoint.gridHeight, FluidCellArray.DATA_SIZE);
+			long dyeBytes = gridBytes(checkpoint.gridWidth * checkpoint.dyeScale, checkpoint.gridHeight * checkpoint.dyeScale,
+					DyeField.dataSize(scalarCount));
+
+			expected = Math.addExact(align(Math.addExact(channel.position(), velocityBytes)), dyeBytes);
+		} catch(ArithmeticException e) {
+			throw new IOException("Checkpoint grid is too large");
+		}
+
+		if(channel.size() < expected) {
+			throw new IOException(String.format("Checkpoint is truncated, %d bytes < %d bytes", channel.size(), expected));
+		}
+
+		return checkpoint;
+	}
+
+	/** Reads a parameter of the simulation, which must be finite and not negative */
+	private static double readParameter(ByteBuffer buffer, String name) throws IOException {
+		double value = buffer.getDouble();
+
+		if(!(value >= 0.0) || Double.isInfinite(value)) {
+			throw new IOException(String.format("Invalid checkpoint %s %s", name, value));
+		}
+
+		return value;
+	}
+
+	private static long gridBytes(int width, int height, int cellSize) {
+		return Math.multiplyExact(Math.multiplyExact((long) width * height, cellSize), Double.BYTES);
+	}
+
+	/** Reads the grid data into the velocity and dye storage, which must already be the right size */
+	void readData(FileChannel channel) throws IOException {
+		long position = channel.position();
+		long expected = align(position + velocity.size() * Double.BYTES) + dye.size() * Double.BYTES;
+
+		if(channel.size() < expected) {
+			throw new IOException(String.format("Checkpoint is truncated, %d bytes < %d bytes", channel.size(), expected));
+		}
+
+		position = transfer(channel, position, velocity, false);
+		transfer(channel, position, dye, false);
+	}
+
+	private ByteBuffer header() {
+		byte[][] names = new byte[scalars.length][];
+		int length = FIXED_HEADER_SIZE;
+
+		for(int i = 0; i < scalars.length; i++) {
+			names[i] = scalars[i].getBytes(StandardCharsets.UTF_8);
+			length += Integer.BYTES + names[i].length;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate((int) align(length)).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC)
+			.putInt(VERSION)
+			.putInt(gridWidth)
+			.putInt(gridHeight)
+			.putInt(FluidCellArray.DATA_SIZE)
+			.putInt(dyeScale)
+			.putInt(scalars.length)
+			.putInt(advectionScheme.ordinal())
+			.putInt(fixedTimestep ? 1 : 0)
+			.putDouble(viscocity)
+			.putDouble(timestep)
+			.putDouble(courantNumber)
+			.putLong(tickCount);
+
+		for(byte[] name : names) {
+			header.putInt(name.length).put(name);
+		}
+
+		header.clear();
+		return header;
+	}
+
+	/** 
+	 * Copies values to or from the file starting at position, returning the position after them. The bands are stored one
+	 * after the other, which is the same as storing the grid in a single array. Each mapping is forced if it was written,
+	 * and unmapped once it has been copied, so that the file is not held open by mappings that are waiting to be collected.
+	 */
+	private static long transfer(FileChannel channel, long position, CellStorage values, boolean write) throws IOException {
+		long bytes = values.size() * Double.BYTES;
+		long offset = 0;
+
+		for(int band = 0; band < values.bands; ) {
+			//Map as many whole bands as fit in one mapping
+			int end = band;
+			long length = 0;
+			while(end < values.bands && (end == band || length + (long) values.bandSize(end) * Double.BYTES <= MAX_MAPPING)) {
+				length += (long) values.bandSize(end++) * Double.BYTES;
+			}
+
+			MappedByteBuffer mapping = channel.map(write ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+					position + offset, length);
+			DoubleBuffer doubles = mapping.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+
+			for(; band < end; band++) {
+				if(write) {
+					doubles.put(values.band(band));
+				} else {
+					doubles.limit(doubles.position() + values.bandSize(band));
+					values.band(band).put(doubles);
+				}
+			}
+
+			if(write) {
+				mapping.force();
+			}
+
+			unmap(mapping);
+			offset += length;
+		}
+
+		return align(position + bytes);
+	}
+
+	@FunctionalInterface
+	private interface Unmapper {
+		void unmap(ByteBuffer buffer) throws ReflectiveOperationException;
+	}
+
+	/** Finds Unsafe.invokeCleaner, which is the only way to unmap a file before the mapping is collected */
+	private static Unmapper unmapper() {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+
+			Object unsafe = field.get(null);
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+
+			return buffer -> invokeCleaner.invoke(unsafe, buffer);
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/** Unmaps mapping, which must not be used again. If this is not supported it is left to be unmapped when it is collected. */
+	private static void unmap(MappedByteBuffer mapping) {
+		if(UNMAPPER == null) {
+			return;
+		}
+
+		try {
+			UNMAPPER.unmap(mapping);
+		} catch(ReflectiveOperationException e) {
+			System.err.println("Unable to unmap a checkpoint: " + e);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer) == -1) {
+				throw new IOException("Unexpected end of checkpoint");
+			}
+		}
+	}
+
+	private static long align(long position) {
+		return (position + DATA_ALIGNMENT - 1) / DATA_ALIGNMENT * DATA_ALIGNMENT;
+	}
+}
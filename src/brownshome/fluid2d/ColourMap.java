@@ -0,0 +1,74 @@
+package brownshome.fluid2d;
+
+/** 
+ * The mappings from field values to display colours, shared by the live view and recorded playback. The colours are 
+ * packed ARGB ints so that whole frames can be rendered without allocating.
+ */
+final class ColourMap {
+	static final int BLACK = 0xFF000000;
+	
+	/** 
+	 * The steepest slope of each mapping, the most that a colour component can change for a unit change in the value. The
+	 * dye mapping is normalised, so its slope is taken to be one, which holds while the dye has at least unit magnitude.
+	 */
+	static final double DYE_SLOPE = 1.0;
+	static final double VELOCITY_SLOPE = 0.0005 / Math.PI;
+	static final double PRESSURE_SLOPE = 0.005 / Math.PI;
+	static final double SCALAR_SLOPE = 1.0 / Math.PI;
+	
+	private ColourMap() {}
+	
+	/** Shows three dye channels as red, green and blue, normalised so that only the hue and saturation are shown */
+	static int dye(double r, double g, double b) {
+		double acc = r * r + g * g + b * b;
+		acc = Math.sqrt(acc);
+
+		r = r / acc;
+		g = g / acc;
+		b = b / acc;
+
+		return argb(clamp((float) r), clamp((float) g), clamp((float) b));
+	}
+	
+	static int velocity(double vx, double vy) {
+		return argb(exp(vx * 0.0005), exp(vy * 0.0005), 1f);
+	}
+	
+	static int pressure(double pressure) {
+		return argb(exp(pressure * 0.005), exp(pressure * 0.00005), exp(pressure * 0.0000005));
+	}
+	
+	/** Shows a single scalar in greyscale, mapping its full range onto black to white */
+	static int scalar(double value) {
+		float grey = exp(value);
+		return argb(grey, grey, grey);
+	}
+	
+	/** Blends a colour towards white, this is used to draw the tracer density over the fields */
+	static int overlay(int argb, float alpha) {
+		int red = argb >> 16 & 0xFF;
+		int green = argb >> 8 & 0xFF;
+		int blue = argb & 0xFF;
+		
+		return 0xFF000000
+				| ((int) (red + (255 - red) * alpha + 0.5f) << 16)
+				| ((int) (green + (255 - green) * alpha + 0.5f) << 8)
+				| (int) (blue + (255 - blue) * alpha + 0.5f);
+	}
+	
+	/** Packs the components in the same way as {@link java.awt.Color#Color(float, float, float)} */
+	private static int argb(float r, float g, float b) {
+		return 0xFF000000 
+				| ((int) (r * 255 + 0.5f) << 16) 
+				| ((int) (g * 255 + 0.5f) << 8) 
+				| (int) (b * 255 + 0.5f);
+	}
+	
+	private static float clamp(float f) {
+		return Math.min(Math.max(0, f), 1);
+	}
+	
+	private static float exp(double x) {
+		return (float) (Math.atan(x) / Math.PI + 0.5);
+	}
+}
@@ -0,0 +1,353 @@
+package brownshome.fluid2d;
+
+import java.awt.Color;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * The passive scalars carried by the fluid, such as dyes and temperatures. These are stored at scale times the
+ * resolution of the velocity grid and are advected using bilinearly upsampled velocities, so that the output can be
+ * sharper than the pressure solve. Each cell stores all of the scalars followed by the temporary copy of each of them.
+ */
+class DyeField {
+	private static final int COLOUR_OFFSET = 0; //channels
+
+	private final CellStorage data;
+	private final FluidCellArray velocity;
+	
+	private final Scalar[] scalars;
+	private final int channels;
+	private final int dataSize;
+	private final int tmpColourOffset;
+	
+	/** The scalars after the forward step of MacCormack advection. This is null until it is needed. */
+	private CellStorage forward;
+
+	final int width;
+	final int height;
+	final int scale;
+	private final double inverseScale;
+	private final StorageMode mode;
+
+	/** Creates the field, {@link #initialise(int, int)} must be called on every row before it is used */
+	DyeField(FluidCellArray velocity, int gridWidth, int gridHeight, int scale, Scalar[] scalars, StorageMode mode) {
+		this.velocity = velocity;
+		this.scalars = scalars.clone();
+		this.channels = scalars.length;
+		this.dataSize = dataSize(channels);
+		this.tmpColourOffset = channels;
+		this.scale = scale;
+		this.width = gridWidth * scale;
+		this.height = gridHeight * scale;
+		this.inverseScale = 1.0 / scale;
+		this.mode = mode;
+
+		data = CellStorage.allocate(width, height, dataSize, mode);
+	}
+
+	/** The number of values in each cell of a field with the given number of scalars */
+	static int dataSize(int channels) {
+		return channels * 2;
+	}
+
+	/** Sets the initial values of rows [startRow, endRow), this is the first write to those rows */
+	void initialise(int startRow, int endRow) {
+		data.clear(startRow, endRow);
+
+		for(int y = startRow; y < endRow; y++) {
+			for(int x = 0; x < width; x++) {
+				long index = index(x, y);
+
+				for(int channel = 0; channel < channels; channel++) {
+					data.set(index + COLOUR_OFFSET + channel, scalars[channel].initialiser.value((double) x / width, (double) y / height));
+				}
+			}
+		}
+	}
+
+	/** The backing storage, this is used to copy the whole grid in and out of checkpoints */
+	CellStorage storage() {
+		return data;
+	}
+	
+	String[] names() {
+		String[] names = new String[channels];
+		
+		for(int channel = 0; channel < channels; channel++) {
+			names[channel] = scalars[channel].name;
+		}
+		
+		return names;
+	}
+
+	int channels() {
+		return channels;
+	}
+	
+	/** Returns the channel of the scalar with the given name, or -1 if there is no such scalar */
+	int channel(String name) {
+		for(int channel = 0; channel < channels; channel++) {
+			if(scalars[channel].name.equals(name)) {
+				return channel;
+			}
+		}
+		
+		return -1;
+	}
+
+	/** The value of a channel in the dye cell (x, y), without interpolation or bounds checks */
+	double value(int x, int y, int channel) {
+		return data.get(index(x, y) + COLOUR_OFFSET + channel);
+	}
+
+	/** The largest difference between any channel of (x, y) and the cells to its right and below it */
+	double gradient(int x, int y) {
+		long index = index(x, y);
+		long right = get(x + 1, y);
+		long below = get(x, y + 1);
+		double gradient = 0.0;
+
+		for(int channel = COLOUR_OFFSET; channel < COLOUR_OFFSET + channels; channel++) {
+			double value = data.get(index + channel);
+			gradient = Math.max(gradient, Math.max(Math.abs(data.get(right + channel) - value), Math.abs(data.get(below + channel) - value)));
+		}
+
+		return gradient;
+	}
+
+	private long index(int x, int y) {
+		return data.index(x, y);
+	}
+
+	private long get(int x, int y) {
+		return data.clampedIndex(x, y);
+	}
+
+	/** Converts a coordinate on this grid into a coordinate on the velocity grid */
+	private double toVelocityGrid(int x) {
+		return (x + 0.5) * inverseScale - 0.5;
+	}
+
+	/** Finds a channel at the velocity grid point (x, y) */
+	double sample(double x, double y, int channel) {
+		x = (x + 0.5) * scale - 0.5;
+		y = (y + 0.5) * scale - 0.5;
+
+		double floorX = Math.floor(x);
+		double floorY = Math.floor(y);
+
+		int x0 = (int) floorX;
+		int y0 = (int) floorY;
+
+		int offset = COLOUR_OFFSET + channel;
+		double p00 = data.get(offset + get(x0, y0));
+		double p01 = data.get(offset + get(x0, y0 + 1));
+		double p10 = data.get(offset + get(x0 + 1, y0));
+		double p11 = data.get(offset + get(x0 + 1, y0 + 1));
+
+		double lerpX = x - floorX;
+		double lerpY = y - floorY;
+
+		return lerp(lerp(p00, p10, lerpX), lerp(p01, p11, lerpX), lerpY);
+	}
+
+	private double lerp(double a, double b, double lerp) {
+		return (1 - lerp) * a + lerp * b;
+	}
+
+	void advection(int x, int y, double timestep) {
+		long index = index(x, y);
+
+		double velocityX = toVelocityGrid(x);
+		double velocityY = toVelocityGrid(y);
+
+		//Velocities are in velocity grid cells, so they need to be scaled up to this grid
+		double step = timestep * scale;
+		double sampleX = x - velocity.sample(velocityX, velocityY, FluidCellArray.VELOCITY_OFFSET) * step;
+		double sampleY = y - velocity.sample(velocityX, velocityY, FluidCellArray.VELOCITY_OFFSET + 1) * step;
+
+		double floorX = Math.floor(sampleX);
+		double floorY = Math.floor(sampleY);
+
+		int x0 = (int) floorX;
+		int y0 = (int) floorY;
+
+		long i00 = get(x0, y0);
+		long i01 = get(x0, y0 + 1);
+		long i10 = get(x0 + 1, y0);
+		long i11 = get(x0 + 1, y0 + 1);
+
+		double lerpX = sampleX - floorX;
+		double lerpY = sampleY - floorY;
+
+		//The weights are shared by every scalar, so each channel is only four multiply-adds
+		double w11 = lerpX * lerpY;
+		double w10 = lerpX - w11;
+		double w01 = lerpY - w11;
+		double w00 = 1.0 - lerpX - w01;
+
+		long target = index + tmpColourOffset;
+		for(int channel = COLOUR_OFFSET; channel < COLOUR_OFFSET + channels; channel++) {
+			data.set(target++, w00 * data.get(i00 + channel) + w10 * data.get(i10 + channel) 
+					+ w01 * data.get(i01 + channel) + w11 * data.get(i11 + channel));
+		}
+	}
+
+	void advectionRow(int y, int startX, int endX, double timestep) {
+		for(int x = startX; x < endX; x++) {
+			advection(x, y, timestep);
+		}
+	}
+
+	/** Creates the forward buffer if it does not exist, returning true if {@link #clearForward(int, int)} must be called */
+	boolean enableMacCormack() {
+		if(forward == null) {
+			forward = CellStorage.allocate(width, height, channels, mode);
+			return true;
+		}
+
+		return false;
+	}
+
+	void clearForward(int startRow, int endRow) {
+		forward.clear(startRow, endRow);
+	}
+	
+	/** The first step of MacCormack advection, this is a normal semi-Lagrangian step into the forward buffer */
+	void macCormackForward(int x, int y, double timestep) {
+		advection(x, y, timestep);
+		
+		data.copy(index(x, y) + tmpColourOffset, forward, forward.index(x, y), channels);
+	}
+
+	void macCormackForwardRow(int y, int startX, int endX, double timestep) {
+		for(int x = startX; x < endX; x++) {
+			macCormackForward(x, y, timestep);
+		}
+	}
+	
+	/** 
+	 * The second step of MacCormack advection. The forward result is traced back to the start of the tick and half of the 
+	 * difference is used to correct it. The corrected value is then clamped to the values that the forward step sampled.
+	 */
+	void macCormackCorrection(int x, int y, double timestep) {
+		long index = index(x, y);
+
+		double velocityX = toVelocityGrid(x);
+		double velocityY = toVelocityGrid(y);
+
+		double step = timestep * scale;
+		double dx = velocity.sample(velocityX, velocityY, FluidCellArray.VELOCITY_OFFSET) * step;
+		double dy = velocity.sample(velocityX, velocityY, FluidCellArray.VELOCITY_OFFSET + 1) * step;
+
+		//Trace backwards through the forward result
+		double backX = x + dx;
+		double backY = y + dy;
+		
+		double floorX = Math.floor(backX);
+		double floorY = Math.floor(backY);
+
+		int x0 = (int) floorX;
+		int y0 = (int) floorY;
+
+		long c00 = forward.clampedIndex(x0, y0);
+		long c01 = forward.clampedIndex(x0, y0 + 1);
+		long c10 = forward.clampedIndex(x0 + 1, y0);
+		long c11 = forward.clampedIndex(x0 + 1, y0 + 1);
+
+		double lerpX = backX - floorX;
+		double lerpY = backY - floorY;
+
+		double w11 = lerpX * lerpY;
+		double w10 = lerpX - w11;
+		double w01 = lerpY - w11;
+		double w00 = 1.0 - lerpX - w01;
+		
+		//The limiter uses the four cells that the forward step sampled
+		x0 = (int) Math.floor(x - dx);
+		y0 = (int) Math.floor(y - dy);
+
+		long i00 = get(x0, y0);
+		long i01 = get(x0, y0 + 1);
+		long i10 = get(x0 + 1, y0);
+		long i11 = get(x0 + 1, y0 + 1);
+		
+		long cell = forward.index(x, y);
+		for(int channel = 0; channel < channels; channel++) {
+			double back = w00 * forward.get(c00 + channel) + w10 * forward.get(c10 + channel) 
+					+ w01 * forward.get(c01 + channel) + w11 * forward.get(c11 + channel);
+			
+			int offset = COLOUR_OFFSET + channel;
+			double corrected = forward.get(cell + channel) + 0.5 * (data.get(index + offset) - back);
+			
+			data.set(index + tmpColourOffset + channel, FluidCellArray.clamp(corrected, 
+					data.get(i00 + offset), data.get(i01 + offset), data.get(i10 + offset), data.get(i11 + offset)));
+		}
+	}
+
+	void macCormackCorrectionRow(int y, int startX, int endX, double timestep) {
+		for(int x = startX; x < endX; x++) {
+			macCormackCorrection(x, y, timestep);
+		}
+	}
+
+	/** Copies a channel for the rows [startRow, endRow) into out, one float per cell starting from base */
+	void copyChannel(int channel, FloatBuffer out, int base, int startRow, int endRow) {
+		for(int y = startRow; y < endRow; y++) {
+			for(int x = 0; x < width; x++) {
+				out.put(base + x + y * width, (float) data.get(index(x, y) + COLOUR_OFFSET + channel));
+			}
+		}
+	}
+
+	/** Copies a channel for the rows [startRow, endRow) into the array held by a .npy file */
+	void copyChannel(int channel, NpyFile out, int startRow, int endRow) {
+		for(int y = startRow; y < endRow; y++) {
+			DoubleBuffer row = out.row(y);
+			int base = out.rowOffset(y);
+
+			for(int x = 0; x < width; x++) {
+				row.put(base + x, data.get(index(x, y) + COLOUR_OFFSET + channel));
+			}
+		}
+	}
+
+	void pushColourRow(int y, int startX, int endX) {
+		long index = index(startX, y);
+
+		for(int x = startX; x < endX; x++, index += dataSize) {
+			data.copy(index + tmpColourOffset, data, index + COLOUR_OFFSET, channels);
+		}
+	}
+
+	public Color getColour(int x, int y) {
+		return new Color(getARGB(x, y));
+	}
+
+	/** The colour of the first three scalars as a packed ARGB int */
+	int getARGB(int x, int y) {
+		if(velocity.isSolid(x / scale, y / scale))
+			return ColourMap.BLACK;
+
+		long index = index(x, y);
+
+		//The first three scalars are shown as red, green and blue
+		double r = channels > 0 ? data.get(index + COLOUR_OFFSET) : 0.0;
+		double g = channels > 1 ? data.get(index + COLOUR_OFFSET + 1) : 0.0;
+		double b = channels > 2 ? data.get(index + COLOUR_OFFSET + 2) : 0.0;
+
+		return ColourMap.dye(r, g, b);
+	}
+
+	/** Shows a single scalar in greyscale, mapping its full range onto black to white */
+	public Color getScalarColour(int x, int y, int channel) {
+		return new Color(getScalarARGB(x, y, channel));
+	}
+
+	int getScalarARGB(int x, int y, int channel) {
+		if(velocity.isSolid(x / scale, y / scale))
+			return ColourMap.BLACK;
+
+		return ColourMap.scalar(data.get(index(x, y) + COLOUR_OFFSET + channel));
+	}
+}
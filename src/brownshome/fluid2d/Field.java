@@ -0,0 +1,14 @@
+package brownshome.fluid2d;
+
+/** The fields of the velocity grid that can be sampled at arbitrary points */
+public enum Field {
+	VELOCITY_X(FluidCellArray.VELOCITY_OFFSET),
+	VELOCITY_Y(FluidCellArray.VELOCITY_OFFSET + 1),
+	PRESSURE(FluidCellArray.PRESSURE_OFFSET);
+	
+	final int offset;
+	
+	Field(int offset) {
+		this.offset = offset;
+	}
+}
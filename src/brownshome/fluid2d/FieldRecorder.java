@@ -0,0 +1,456 @@
+package brownshome.fluid2d;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a time series of the simulation fields to disk. The simulation thread copies each frame into one of a small pool
+ * of off-heap buffers, and a background thread quantizes it to 16 bits, delta encodes it against the previous frame,
+ * compresses it and writes it out. If the disk falls behind then frames are dropped or coalesced rather than stalling
+ * the simulation.
+ * <p>
+ * The file is a header followed by a sequence of frames, all little endian. The header is the magic number, the version,
+ * the quantization, the compression, the number of planes and then the width, height and name of each plane. Each frame
+ * is the frame magic number, the tick, the flags, the uncompressed and compressed payload lengths and the offset and
+ * scale of each plane, followed by the payload. The payload is each plane in turn as 16 bit codes, which are differences
+ * from the previous frame unless the frame is a keyframe.
+ * <p>
+ * The offset and scale of each plane are only chosen on a keyframe, and are kept until the next one, so that the codes of
+ * consecutive frames are on the same scale and their differences are small. A frame with a value that cannot be coded on
+ * the current scale is written as a keyframe.
+ */
+public final class FieldRecorder implements AutoCloseable {
+	public enum Quantization {
+		/** Half precision floats, divided by the largest magnitude in the plane */
+		FLOAT16,
+
+		/** Evenly spaced 16 bit integers between the smallest and largest value in the plane */
+		INT16
+	}
+
+	public enum Compression {
+		NONE(Deflater.NO_COMPRESSION),
+
+		/** Deflate with the fastest settings, this is intended for when the writer is struggling to keep up */
+		DEFLATE_FAST(Deflater.BEST_SPEED),
+
+		DEFLATE(Deflater.DEFAULT_COMPRESSION);
+
+		final int level;
+
+		Compression(int level) {
+			this.level = level;
+		}
+	}
+
+	public enum Backpressure {
+		/** New frames are dropped while all of the buffers are in use */
+		DROP,
+
+		/** New frames replace the newest frame that has not been started by the writer yet */
+		COALESCE
+	}
+
+	static final int MAGIC = 0x43524C46; //FLRC
+	static final int FRAME_MAGIC = 0x4D524646; //FFRM
+	static final int VERSION = 1;
+
+	static final int KEYFRAME_FLAG = 1;
+
+	/** The number of buffers that frames are copied into, this is how many frames can be waiting for the writer */
+	private static final int BUFFER_COUNT = 3;
+
+	/** A keyframe is written at least this often so that the file can be read from the middle */
+	static final int KEYFRAME_INTERVAL = 32;
+
+	/** The range of the integer codes of a keyframe is widened by this fraction of it on each side, so that later frames fit */
+	private static final float INT16_HEADROOM = 0.125f;
+
+	/** The largest finite half precision value */
+	private static final float FLOAT16_MAX = 65504f;
+
+	final int interval;
+	private final Quantization quantization;
+	private final Compression compression;
+	private final Backpressure backpressure;
+
+	private final int[] planeWidths;
+	private final int[] planeHeights;
+	private final int[] planeStarts;
+	private final int totalValues;
+
+	private final FileChannel channel;
+	private final BlockingQueue<Frame> free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+	private final BlockingDeque<Frame> pending = new LinkedBlockingDeque<>();
+	private final Thread writer;
+	private volatile boolean closed = false;
+	private volatile IOException failure;
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/** A frame that is waiting to be written. The values of every plane are stored one after the other. */
+	static final class Frame {
+		final FloatBuffer values;
+		long tick;
+
+		Frame(int totalValues) {
+			values = ByteBuffer.allocateDirect(totalValues * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+	}
+
+	FieldRecorder(Path path, int interval, Quantization quantization, Compression compression, Backpressure backpressure,
+			String[] planeNames, int[] planeWidths, int[] planeHeights) throws IOException {
+
+		if(interval < 1) {
+			throw new IllegalArgumentException("The interval must be at least 1: " + interval);
+		}
+
+		this.interval = interval;
+		this.quantization = quantization;
+		this.compression = compression;
+		this.backpressure = backpressure;
+		this.planeWidths = planeWidths.clone();
+		this.planeHeights = planeHeights.clone();
+
+		planeStarts = new int[planeWidths.length];
+		int total = 0;
+		for(int plane = 0; plane < planeWidths.length; plane++) {
+			planeStarts[plane] = total;
+			total += planeWidths[plane] * planeHeights[plane];
+		}
+
+		totalValues = total;
+
+		for(int i = 0; i < BUFFER_COUNT; i++) {
+			free.add(new Frame(totalValues));
+		}
+
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		writeFully(fileHeader(planeNames));
+
+		writer = new Thread(this::writeFrames, "Field Recorder");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private ByteBuffer fileHeader(String[] planeNames) {
+		byte[][] names = new byte[planeNames.length][];
+		int length = Integer.BYTES * 5;
+
+		for(int plane = 0; plane < planeNames.length; plane++) {
+			names[plane] = planeNames[plane].getBytes(StandardCharsets.UTF_8);
+			length += Integer.BYTES * 3 + names[plane].length;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC)
+			.putInt(VERSION)
+			.putInt(quantization.ordinal())
+			.putInt(compression.ordinal())
+			.putInt(planeNames.length);
+
+		for(int plane = 0; plane < planeNames.length; plane++) {
+			header.putInt(planeWidths[plane])
+				.putInt(planeHeights[plane])
+				.putInt(names[plane].length)
+				.put(names[plane]);
+		}
+
+		header.flip();
+		return header;
+	}
+
+	int planeStart(int plane) {
+		return planeStarts[plane];
+	}
+
+	/** The number of frames that have been written to disk */
+	public long framesWritten() {
+		return written.get();
+	}
+
+	/** The number of frames that were dropped or replaced because the writer could not keep up */
+	public long framesDropped() {
+		return dropped.get();
+	}
+
+	/** Gets a buffer to copy the next frame into, or null if the frame should be skipped */
+	Frame acquire() {
+		if(closed) {
+			return null;
+		}
+
+		Frame frame = free.poll();
+
+		if(frame != null) {
+			return frame;
+		}
+
+		//Either this frame or the one it replaces is lost
+		dropped.incrementAndGet();
+
+		if(backpressure == Backpressure.COALESCE) {
+			return pending.pollLast();
+		}
+
+		return null;
+	}
+
+	/** 
+	 * Queues a frame that has been filled by the simulation. If the recorder was closed after the frame was acquired then
+	 * the frame is counted as dropped and false is returned.
+	 */
+	boolean submit(Frame frame, long tick) {
+		frame.tick = tick;
+
+		//The writer only stops once it is closed and nothing is pending, so a frame that is queued here is always written
+		synchronized(pending) {
+			if(closed) {
+				free.add(frame);
+				dropped.incrementAndGet();
+				return false;
+			}
+
+			pending.addLast(frame);
+			return true;
+		}
+	}
+
+	private void writeFrames() {
+		short[][] previous = new short[planeWidths.length][];
+		short[] codes = new short[totalValues];
+		float[] offsets = new float[planeWidths.length];
+		float[] scales = new float[planeWidths.length];
+
+		ByteBuffer raw = ByteBuffer.allocate(totalValues * Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		byte[] compressed = new byte[raw.capacity() + 1024];
+		ByteBuffer frameHeader = ByteBuffer.allocate(Integer.BYTES * 4 + Long.BYTES + planeWidths.length * Float.BYTES * 2)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		Deflater deflater = new Deflater(compression.level);
+
+		for(int plane = 0; plane < planeWidths.length; plane++) {
+			previous[plane] = new short[planeWidths[plane] * planeHeights[plane]];
+		}
+
+		float[] mins = new float[planeWidths.length];
+		float[] maxs = new float[planeWidths.length];
+		long lastKeyframe = -KEYFRAME_INTERVAL;
+		long frameNumber = 0;
+
+		try {
+			while(!closed || !pending.isEmpty()) {
+				Frame frame = pending.pollFirst(100, TimeUnit.MILLISECONDS);
+
+				if(frame == null) {
+					continue;
+				}
+
+				long tick = frame.tick;
+				range(frame.values, mins, maxs);
+
+				boolean keyframe = frameNumber - lastKeyframe >= KEYFRAME_INTERVAL;
+				for(int plane = 0; plane < planeWidths.length && !keyframe; plane++) {
+					keyframe = !fits(mins[plane], maxs[plane], offsets[plane], scales[plane]);
+				}
+
+				if(keyframe) {
+					for(int plane = 0; plane < planeWidths.length; plane++) {
+						rescale(plane, mins[plane], maxs[plane], offsets, scales);
+					}
+
+					lastKeyframe = frameNumber;
+				}
+
+				quantize(frame.values, codes, offsets, scales);
+
+				//The values have been copied out, so the buffer can be reused straight away
+				free.add(frame);
+
+				raw.clear();
+				for(int plane = 0; plane < planeWidths.length; plane++) {
+					short[] last = previous[plane];
+					int start = planeStarts[plane];
+
+					for(int i = 0; i < last.length; i++) {
+						short code = codes[start + i];
+						raw.putShort(keyframe ? code : (short) (code - last[i]));
+						last[i] = code;
+					}
+				}
+
+				int compressedLength = 0;
+				if(compression != Compression.NONE) {
+					deflater.reset();
+					deflater.setInput(raw.array(), 0, raw.position());
+					deflater.finish();
+
+					while(!deflater.finished()) {
+						if(compressedLength == compressed.length) {
+							compressed = Arrays.copyOf(compressed, compressed.length * 2);
+						}
+
+						compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+					}
+				}
+
+				frameHeader.clear();
+				frameHeader.putInt(FRAME_MAGIC)
+					.putLong(tick)
+					.putInt(keyframe ? KEYFRAME_FLAG : 0)
+					.putInt(raw.position())
+					.putInt(compression == Compression.NONE ? raw.position() : compressedLength);
+
+				for(int plane = 0; plane < planeWidths.length; plane++) {
+					frameHeader.putFloat(offsets[plane]).putFloat(scales[plane]);
+				}
+
+				frameHeader.flip();
+				writeFully(frameHeader);
+
+				if(compression == Compression.NONE) {
+					raw.flip();
+					writeFully(raw);
+				} else {
+					writeFully(ByteBuffer.wrap(compressed, 0, compressedLength));
+				}
+
+				frameNumber++;
+				written.incrementAndGet();
+			}
+		} catch(IOException e) {
+			failure = e;
+
+			synchronized(pending) {
+				closed = true;
+
+				for(Frame frame; (frame = pending.pollFirst()) != null; ) {
+					free.add(frame);
+					dropped.incrementAndGet();
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private void range(FloatBuffer values, float[] mins, float[] maxs) {
+		for(int plane = 0; plane < planeWidths.length; plane++) {
+			int start = planeStarts[plane];
+			int end = start + planeWidths[plane] * planeHeights[plane];
+
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+
+			for(int i = start; i < end; i++) {
+				float value = values.get(i);
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+
+			mins[plane] = min;
+			maxs[plane] = max;
+		}
+	}
+
+	/** Returns true if the values between min and max can be coded with the given offset and scale */
+	private boolean fits(float min, float max, float offset, float scale) {
+		if(quantization == Quantization.INT16) {
+			return min >= offset && (max - offset) / scale <= 65535f;
+		} else {
+			return Math.max(Math.abs(min), Math.abs(max)) / scale <= FLOAT16_MAX;
+		}
+	}
+
+	/** Chooses the offset and scale of a plane for a keyframe with values between min and max */
+	private void rescale(int plane, float min, float max, float[] offsets, float[] scales) {
+		if(quantization == Quantization.INT16) {
+			float headroom = (max - min) * INT16_HEADROOM;
+			min -= headroom;
+			max += headroom;
+
+			offsets[plane] = min;
+			scales[plane] = max > min ? (max - min) / 65535f : 1f;
+		} else {
+			float magnitude = Math.max(Math.abs(min), Math.abs(max));
+
+			offsets[plane] = 0f;
+			scales[plane] = magnitude > 0f && magnitude < Float.POSITIVE_INFINITY ? magnitude : 1f;
+		}
+	}
+
+	private void quantize(FloatBuffer values, short[] codes, float[] offsets, float[] scales) {
+		for(int plane = 0; plane < planeWidths.length; plane++) {
+			int start = planeStarts[plane];
+			int end = start + planeWidths[plane] * planeHeights[plane];
+
+			float offset = offsets[plane];
+			float inverse = 1f / scales[plane];
+
+			if(quantization == Quantization.INT16) {
+				for(int i = start; i < end; i++) {
+					int code = Math.round((values.get(i) - offset) * inverse);
+					codes[i] = (short) (Math.max(0, Math.min(code, 65535)) - 32768);
+				}
+			} else {
+				for(int i = start; i < end; i++) {
+					codes[i] = Float16.fromFloat(values.get(i) * inverse);
+				}
+			}
+		}
+	}
+
+	/** Converts a code back into a value */
+	static float dequantize(Quantization quantization, short code, float offset, float scale) {
+		if(quantization == Quantization.INT16) {
+			return (code + 32768) * scale + offset;
+		} else {
+			return Float16.toFloat(code) * scale;
+		}
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/** 
+	 * Stops recording, waiting for the frames that have already been submitted to be written. A frame that is submitted
+	 * after this is dropped.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized(pending) {
+			closed = true;
+		}
+
+		try {
+			writer.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		channel.close();
+
+		if(failure != null) {
+			throw failure;
+		}
+	}
+}
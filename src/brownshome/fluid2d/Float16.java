@@ -0,0 +1,64 @@
+package brownshome.fluid2d;
+
+/** Conversions between floats and IEEE 754 half precision values stored in shorts */
+final class Float16 {
+	private Float16() {}
+
+	/** Converts a float to the nearest half precision value */
+	static short fromFloat(float value) {
+		int bits = Float.floatToRawIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+		int mantissa = bits & 0x7FFFFF;
+
+		if(exponent >= 0x1F) {
+			//Infinity, NaN or too large to represent
+			boolean nan = ((bits >>> 23) & 0xFF) == 0xFF && mantissa != 0;
+			return (short) (sign | (nan ? 0x7E00 : 0x7C00));
+		}
+
+		if(exponent <= 0) {
+			//Subnormal values, or zero if they are too small
+			if(exponent < -10) {
+				return (short) sign;
+			}
+
+			mantissa |= 0x800000;
+			int shift = 14 - exponent;
+			int half = mantissa >> shift;
+
+			if(((mantissa >> (shift - 1)) & 1) != 0) {
+				half++;
+			}
+
+			return (short) (sign | half);
+		}
+
+		int half = sign | (exponent << 10) | (mantissa >> 13);
+
+		//Rounding may carry into the exponent, which still gives the right result
+		if((mantissa & 0x1000) != 0) {
+			half++;
+		}
+
+		return (short) half;
+	}
+
+	static float toFloat(short half) {
+		int bits = half & 0xFFFF;
+		int sign = (bits & 0x8000) << 16;
+		int exponent = (bits >>> 10) & 0x1F;
+		int mantissa = bits & 0x3FF;
+
+		if(exponent == 0) {
+			float value = mantissa * 0x1p-24f;
+			return sign == 0 ? value : -value;
+		}
+
+		if(exponent == 0x1F) {
+			return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+		}
+
+		return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+	}
+}
@@ -1,87 +1,91 @@
 package brownshome.fluid2d;
 
 import java.awt.Color;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
 
-import brownshome.vecmath.MVec2;
+import brownshome.fluid2d.Stencil.Boundary;
+import brownshome.fluid2d.Stencil.Neighbour;
 import brownshome.vecmath.Vec2;
 
 public class FluidCellArray {
-	static final int DATA_SIZE = 11;
+	static final int DATA_SIZE = 6;
 	
 	static final int VELOCITY_OFFSET = 0; //2
-	static final int COLOUR_OFFSET = 2; //3
-	static final int PRESSURE_OFFSET = 5; //1
-	static final int TMP_VELOCITY_OFFSET = 6; //2
-	static final int TMP_COLOUR_OFFSET = 8; //3
+	static final int PRESSURE_OFFSET = 2; //1
+	static final int TMP_VELOCITY_OFFSET = 3; //2
+	static final int TMP_PRESSURE_OFFSET = 5; //1
 	
-	private final double[] data;
+	private final CellStorage data;
 	private final int width;
 	private final int height;
+	private final StorageMode mode;
+	
+	/** The velocity after the forward step of MacCormack advection, two values per cell. This is null until it is needed. */
+	private CellStorage forwardVelocity;
 
 	public int colourMode;
 	
-	FluidCellArray(int width, int height) {
+	/** Creates the array, {@link #initialise(int, int)} must be called on every row before it is used */
+	FluidCellArray(int width, int height, StorageMode mode) {
 		this.width = width;
 		this.height = height;
+		this.mode = mode;
 		
-		data = new double[width * height * DATA_SIZE];
+		data = CellStorage.allocate(width, height, DATA_SIZE, mode);
+	}
+
+	/** Sets the initial values of rows [startRow, endRow), this is the first write to those rows */
+	void initialise(int startRow, int endRow) {
+		data.clear(startRow, endRow);
 		
-		for(int y = 0; y < height; y++) {
+		for(int y = startRow; y < endRow; y++) {
 			for(int x = 0; x < width; x++) {
-				double r = (x * 10 / width) % 2 == 0 ? 1.0 : 0.0;
-				double g = (y * 10 / height) % 2 == 0 ? 1.0 : 0.0;
-				double b = 1.0;
-
-				colour(index(x, y), r, g, b);
 				velocity(index(x, y), -10.0, 0.0);
 			}
 		}
 	}
 
-	private int index(int x, int y) {
-		return (x + y * width) * DATA_SIZE;
+	/** The backing storage, this is used to copy the whole grid in and out of checkpoints */
+	CellStorage storage() {
+		return data;
 	}
 
-	private int get(int x, int y) {
-		if(x < 0) {
-			x = 0;
-		} else if(x >= width) {
-			x = width - 1;
-		}
-		
-		if(y < 0) {
-			y = 0;
-		} else if(y >= height) {
-			y = height - 1;
-		}
-		
-		return index(x, y);
+	/** The value at offset in the cell (x, y), without interpolation or bounds checks */
+	double value(int x, int y, int offset) {
+		return data.get(index(x, y) + offset);
 	}
 
-	private int get(double x, double y) {
-		return get((int) x, (int) y);
+	private long index(int x, int y) {
+		return data.index(x, y);
+	}
+
+	private long get(int x, int y) {
+		return data.clampedIndex(x, y);
 	}
 
 	/** Finds a property at the grid point (x, y) */
 	double sample(Vec2 vec, int offset) {
-		//What do we do at the edge of the area? For now we will wrap around to simplify boundary conditions.
-		MVec2 tmp = new MVec2(vec);
-
-		double p00 = data[offset + get(vec.x(), vec.y())];
-		double p01 = data[offset + get(vec.x(), vec.y() + 1)];
-		double p10 = data[offset + get(vec.x() + 1, vec.y())];
-		double p11 = data[offset + get(vec.x() + 1, vec.y() + 1)];
-
-		while(tmp.x() < 0) 
-			tmp.add(width, 0.0);
+		return sample(vec.x(), vec.y(), offset);
+	}
 
-		while(tmp.y() < 0) 
-			tmp.add(0.0, height);
+	/** Finds a property at the grid point (x, y), clamping to the edge of the grid. This does not allocate. */
+	double sample(double x, double y, int offset) {
+		double floorX = Math.floor(x);
+		double floorY = Math.floor(y);
+		
+		int x0 = (int) floorX;
+		int y0 = (int) floorY;
+		
+		double p00 = data.get(offset + get(x0, y0));
+		double p01 = data.get(offset + get(x0, y0 + 1));
+		double p10 = data.get(offset + get(x0 + 1, y0));
+		double p11 = data.get(offset + get(x0 + 1, y0 + 1));
 
-		tmp.set(tmp.x() % 1.0, tmp.y() % 1.0);
-		vec = tmp;
+		double lerpX = x - floorX;
+		double lerpY = y - floorY;
 		
-		return lerp(lerp(p00, p10, vec.x()), lerp(p01, p11, vec.x() % 1.0), vec.y());
+		return lerp(lerp(p00, p10, lerpX), lerp(p01, p11, lerpX), lerpY);
 	}
 
 	private double lerp(double a, double b, double lerp) {
@@ -89,136 +93,237 @@ public class FluidCellArray {
 	}
 	
 	void advection(int x, int y, double timestep) {
-		int index = index(x, y);
+		long index = index(x, y);
 		
 		//Sample the four squares around the target square
 		double sampleX = x - velocityX(index) * timestep;
 		double sampleY = y - velocityY(index) * timestep;
 		
-		int i00 = get(sampleX, sampleY);
-		int i01 = get(sampleX, sampleY + 1.0);
-		int i10 = get(sampleX + 1.0, sampleY);
-		int i11 = get(sampleX + 1.0, sampleY + 1.0);
-
-		sampleX += width;
-		sampleY += height;
+		double floorX = Math.floor(sampleX);
+		double floorY = Math.floor(sampleY);
+		
+		int x0 = (int) floorX;
+		int y0 = (int) floorY;
 		
-		sampleX %= 1.0;
-		sampleY %= 1.0;
+		long i00 = get(x0, y0);
+		long i01 = get(x0, y0 + 1);
+		long i10 = get(x0 + 1, y0);
+		long i11 = get(x0 + 1, y0 + 1);
+
+		double lerpX = sampleX - floorX;
+		double lerpY = sampleY - floorY;
 		
-		assert sampleX >= 0 && sampleY >= 0;
+		double w11 = lerpX * lerpY;
+		double w10 = lerpX - w11;
+		double w01 = lerpY - w11;
+		double w00 = 1.0 - lerpX - w01;
 		
 		tmpVelocity(index, 
-				lerp(lerp(velocityX(i00), velocityX(i10), sampleX), lerp(velocityX(i01), velocityX(i11), sampleX), sampleY),
-				lerp(lerp(velocityY(i00), velocityY(i10), sampleX), lerp(velocityY(i01), velocityY(i11), sampleX), sampleY));
-				
-		tmpColour(index, 
-				lerp(lerp(colourR(i00), colourR(i10), sampleX), lerp(colourR(i01), colourR(i11), sampleX), sampleY),
-				lerp(lerp(colourG(i00), colourG(i10), sampleX), lerp(colourG(i01), colourG(i11), sampleX), sampleY),
-				lerp(lerp(colourB(i00), colourB(i10), sampleX), lerp(colourB(i01), colourB(i11), sampleX), sampleY));
+				w00 * velocityX(i00) + w10 * velocityX(i10) + w01 * velocityX(i01) + w11 * velocityX(i11),
+				w00 * velocityY(i00) + w10 * velocityY(i10) + w01 * velocityY(i01) + w11 * velocityY(i11));
 	}
-
-	private void tmpVelocity(int index, double x, double y) {
-		data[index + TMP_VELOCITY_OFFSET] = x;
-		data[index + TMP_VELOCITY_OFFSET + 1] = y;
+	
+	void advectionRow(int y, int startX, int endX, double timestep) {
+		for(int x = startX; x < endX; x++) {
+			advection(x, y, timestep);
+		}
 	}
 
-	private void tmpColour(int index, double r, double g, double b) {
-		data[index + TMP_COLOUR_OFFSET] = r;
-		data[index + TMP_COLOUR_OFFSET + 1] = b;
-		data[index + TMP_COLOUR_OFFSET + 2] = g;
+	/** Creates the forward buffer if it does not exist, returning true if {@link #clearForward(int, int)} must be called */
+	boolean enableMacCormack() {
+		if(forwardVelocity == null) {
+			forwardVelocity = CellStorage.allocate(width, height, 2, mode);
+			return true;
+		}
+		
+		return false;
 	}
-
-	private double velocityX(int index) {
-		return data[index + VELOCITY_OFFSET];
+	
+	void clearForward(int startRow, int endRow) {
+		forwardVelocity.clear(startRow, endRow);
 	}
-
-	private double velocityY(int index) {
-		return data[index + VELOCITY_OFFSET + 1];
+	
+	/** The first step of MacCormack advection, this is a normal semi-Lagrangian step into the forward buffer */
+	void macCormackForward(int x, int y, double timestep) {
+		advection(x, y, timestep);
+		
+		long index = index(x, y);
+		long cell = forwardVelocity.index(x, y);
+		forwardVelocity.set(cell, tmpVelocityX(index));
+		forwardVelocity.set(cell + 1, tmpVelocityY(index));
 	}
-
-	private void velocity(int index, double vx, double vy) {
-		data[index + VELOCITY_OFFSET] = vx;
-		data[index + VELOCITY_OFFSET + 1] = vy;
+	
+	void macCormackForwardRow(int y, int startX, int endX, double timestep) {
+		for(int x = startX; x < endX; x++) {
+			macCormackForward(x, y, timestep);
+		}
 	}
-
-	private double tmpVelocityX(int index) {
-		return data[index + TMP_VELOCITY_OFFSET];
+	
+	/** 
+	 * The second step of MacCormack advection. The forward result is traced back to the start of the tick and half of the 
+	 * difference is used to correct it. The corrected value is then clamped to the values that the forward step sampled.
+	 */
+	void macCormackCorrection(int x, int y, double timestep) {
+		long index = index(x, y);
+		double vx = velocityX(index);
+		double vy = velocityY(index);
+		
+		//Trace backwards through the forward result
+		double backX = x + vx * timestep;
+		double backY = y + vy * timestep;
+		
+		double floorX = Math.floor(backX);
+		double floorY = Math.floor(backY);
+		
+		int x0 = (int) floorX;
+		int y0 = (int) floorY;
+		
+		long c00 = forwardVelocity.clampedIndex(x0, y0);
+		long c01 = forwardVelocity.clampedIndex(x0, y0 + 1);
+		long c10 = forwardVelocity.clampedIndex(x0 + 1, y0);
+		long c11 = forwardVelocity.clampedIndex(x0 + 1, y0 + 1);
+		
+		double lerpX = backX - floorX;
+		double lerpY = backY - floorY;
+		
+		double w11 = lerpX * lerpY;
+		double w10 = lerpX - w11;
+		double w01 = lerpY - w11;
+		double w00 = 1.0 - lerpX - w01;
+		
+		double backVx = w00 * forwardVelocity.get(c00) + w10 * forwardVelocity.get(c10) + w01 * forwardVelocity.get(c01) + w11 * forwardVelocity.get(c11);
+		double backVy = w00 * forwardVelocity.get(c00 + 1) + w10 * forwardVelocity.get(c10 + 1) + w01 * forwardVelocity.get(c01 + 1) + w11 * forwardVelocity.get(c11 + 1);
+		
+		//The limiter uses the four cells that the forward step sampled
+		double sampleX = x - vx * timestep;
+		double sampleY = y - vy * timestep;
+		
+		x0 = (int) Math.floor(sampleX);
+		y0 = (int) Math.floor(sampleY);
+		
+		long i00 = get(x0, y0);
+		long i01 = get(x0, y0 + 1);
+		long i10 = get(x0 + 1, y0);
+		long i11 = get(x0 + 1, y0 + 1);
+		
+		long cell = forwardVelocity.index(x, y);
+		double correctedX = forwardVelocity.get(cell) + 0.5 * (vx - backVx);
+		double correctedY = forwardVelocity.get(cell + 1) + 0.5 * (vy - backVy);
+		
+		tmpVelocity(index, 
+				clamp(correctedX, velocityX(i00), velocityX(i01), velocityX(i10), velocityX(i11)),
+				clamp(correctedY, velocityY(i00), velocityY(i01), velocityY(i10), velocityY(i11)));
 	}
-
-	private double tmpVelocityY(int index) {
-		return data[index + TMP_VELOCITY_OFFSET + 1];
+	
+	void macCormackCorrectionRow(int y, int startX, int endX, double timestep) {
+		for(int x = startX; x < endX; x++) {
+			macCormackCorrection(x, y, timestep);
+		}
 	}
-
-	private double colourR(int index) {
-		return data[index + COLOUR_OFFSET];
+	
+	/** Clamps value to the range of the four samples a, b, c and d */
+	static double clamp(double value, double a, double b, double c, double d) {
+		double min = Math.min(Math.min(a, b), Math.min(c, d));
+		double max = Math.max(Math.max(a, b), Math.max(c, d));
+		
+		return Math.min(Math.max(value, min), max);
 	}
 
-	private double colourG(int index) {
-		return data[index + COLOUR_OFFSET + 1];
+	private void tmpVelocity(long index, double x, double y) {
+		data.set(index + TMP_VELOCITY_OFFSET, x);
+		data.set(index + TMP_VELOCITY_OFFSET + 1, y);
 	}
 
-	private double colourB(int index) {
-		return data[index + COLOUR_OFFSET + 2];
+	private double velocityX(long index) {
+		return data.get(index + VELOCITY_OFFSET);
 	}
 
-	private void colour(int index, double r, double g, double b) {
-		data[index + COLOUR_OFFSET] = r;
-		data[index + COLOUR_OFFSET + 1] = b;
-		data[index + COLOUR_OFFSET + 2] = g;
+	private double velocityY(long index) {
+		return data.get(index + VELOCITY_OFFSET + 1);
 	}
 
-	private double tmpColourR(int index) {
-		return data[index + TMP_COLOUR_OFFSET];
+	private void velocity(long index, double vx, double vy) {
+		data.set(index + VELOCITY_OFFSET, vx);
+		data.set(index + VELOCITY_OFFSET + 1, vy);
 	}
 
-	private double tmpColourG(int index) {
-		return data[index + TMP_COLOUR_OFFSET + 1];
+	private double tmpVelocityX(long index) {
+		return data.get(index + TMP_VELOCITY_OFFSET);
 	}
 
-	private double tmpColourB(int index) {
-		return data[index + TMP_COLOUR_OFFSET + 2];
+	private double tmpVelocityY(long index) {
+		return data.get(index + TMP_VELOCITY_OFFSET + 1);
 	}
 
-	private double tmpPressure(int index) {
-		return data[index + TMP_COLOUR_OFFSET];
+	private double tmpPressure(long index) {
+		return data.get(index + TMP_PRESSURE_OFFSET);
 	}
 
-	private void tmpPressure(int index, double newPressure) {
-		data[index + TMP_COLOUR_OFFSET] = newPressure;
+	private void tmpPressure(long index, double newPressure) {
+		data.set(index + TMP_PRESSURE_OFFSET, newPressure);
 	}
 
-	private double pressure(int right) {
-		return data[right + PRESSURE_OFFSET];
+	private double pressure(long index) {
+		return data.get(index + PRESSURE_OFFSET);
 	}
 
-	private void pressure(int index, double pressure) {
-		data[index + PRESSURE_OFFSET] = pressure;
+	private void pressure(long index, double pressure) {
+		data.set(index + PRESSURE_OFFSET, pressure);
 	}
 
-	void performDiffusionIteration(int x, int y, double viscocity, double timestep) {
-		int index = index(x, y);
-		int top, left, right, bottom;
-
-		top = get(x, y + 1);
-		left = get(x - 1, y);
-		bottom = get(x, y - 1);
-		right = get(x + 1, y);
-
+	/** A Jacobi iteration of the diffusion of the velocity, into the temporary velocity */
+	static Stencil diffusionStencil(double viscocity, double timestep) {
 		double alpha = 1.0 / viscocity / timestep;
 		double beta = 4 + alpha;
-
-		double vx = velocityX(top) + velocityX(left) + velocityX(bottom) + velocityX(right) + velocityX(index) * alpha;
-		double vy = velocityY(top) + velocityY(left) + velocityY(bottom) + velocityY(right) + velocityY(index) * alpha;
 		
-		vx /= beta;
-		vy /= beta;
+		Stencil stencil = new Stencil(Boundary.CLAMP);
+		
+		for(int axis = 0; axis < 2; axis++) {
+			stencil.output(TMP_VELOCITY_OFFSET + axis, beta)
+				.term(Neighbour.TOP, VELOCITY_OFFSET + axis, 1.0)
+				.term(Neighbour.LEFT, VELOCITY_OFFSET + axis, 1.0)
+				.term(Neighbour.BOTTOM, VELOCITY_OFFSET + axis, 1.0)
+				.term(Neighbour.RIGHT, VELOCITY_OFFSET + axis, 1.0)
+				.term(Neighbour.CENTRE, VELOCITY_OFFSET + axis, alpha);
+		}
 		
-		tmpVelocity(index, vx, vy);
+		return stencil;
+	}
+	
+	/** A Jacobi iteration of the pressure equation, into the temporary pressure. The divergence is expanded into its terms. */
+	static Stencil pressureStencil() {
+		return new Stencil(Boundary.CLAMP)
+			.output(TMP_PRESSURE_OFFSET, 4.0)
+			.term(Neighbour.TOP, PRESSURE_OFFSET, 1.0)
+			.term(Neighbour.LEFT, PRESSURE_OFFSET, 1.0)
+			.term(Neighbour.BOTTOM, PRESSURE_OFFSET, 1.0)
+			.term(Neighbour.RIGHT, PRESSURE_OFFSET, 1.0)
+			.term(Neighbour.RIGHT, VELOCITY_OFFSET, -0.5)
+			.term(Neighbour.LEFT, VELOCITY_OFFSET, 0.5)
+			.term(Neighbour.TOP, VELOCITY_OFFSET + 1, -0.5)
+			.term(Neighbour.BOTTOM, VELOCITY_OFFSET + 1, 0.5);
+	}
+	
+	/** Subtracts the gradient of the pressure from the velocity, into the temporary velocity */
+	static Stencil gradientStencil() {
+		return new Stencil(Boundary.CLAMP)
+			.output(TMP_VELOCITY_OFFSET)
+			.term(Neighbour.CENTRE, VELOCITY_OFFSET, 1.0)
+			.term(Neighbour.RIGHT, PRESSURE_OFFSET, -1.0)
+			.term(Neighbour.LEFT, PRESSURE_OFFSET, 1.0)
+			.output(TMP_VELOCITY_OFFSET + 1)
+			.term(Neighbour.CENTRE, VELOCITY_OFFSET + 1, 1.0)
+			.term(Neighbour.TOP, PRESSURE_OFFSET, -1.0)
+			.term(Neighbour.BOTTOM, PRESSURE_OFFSET, 1.0);
+	}
+	
+	/** Runs a stencil over the cells [startX, endX) of row y */
+	void apply(Stencil stencil, int y, int startX, int endX) {
+		stencil.row(data, y, startX, endX);
 	}
 
 	double divergence(int x, int y) {
-		int top, left, right, bottom;
+		long top, left, right, bottom;
 
 		top = get(x, y + 1);
 		left = get(x - 1, y);
@@ -228,23 +333,8 @@ public class FluidCellArray {
 		return ((velocityX(right) - velocityX(left)) + (velocityY(top) - velocityY(bottom))) * 0.5;
 	}
 
-	void subtractPressureGradient(int x, int y) {
-		int index = index(x, y);
-		int top, left, right, bottom;
-
-		top = get(x, y + 1);
-		left = get(x - 1, y);
-		bottom = get(x, y - 1);
-		right = get(x + 1, y);
-
-		double pressureDx = pressure(right) - pressure(left);
-		double pressureDy = pressure(top) - pressure(bottom);
-
-		tmpVelocity(index, velocityX(index) - pressureDx, velocityY(index) - pressureDy);
-	}
-
 	void pushVelocityChange(int x, int y) {
-		int index = index(x, y);
+		long index = index(x, y);
 		
 		if(isSolid(x, y)) {
 			velocity(index, 0.0, 0.0);
@@ -252,28 +342,64 @@ public class FluidCellArray {
 			velocity(index, tmpVelocityX(index), tmpVelocityY(index));
 		}
 	}
+	
+	void pushVelocityRow(int y, int startX, int endX) {
+		long index = index(startX, y);
+		
+		for(int x = startX; x < endX; x++, index += DATA_SIZE) {
+			if(isSolid(x, y)) {
+				velocity(index, 0.0, 0.0);
+			} else {
+				velocity(index, tmpVelocityX(index), tmpVelocityY(index));
+			}
+		}
+	}
 
-	void pushPressureChange(int x, int y) {
-		int index = index(x, y);
-		pressure(index, tmpPressure(index));
+	/** Copies the value at offset for the rows [startRow, endRow) into out, one float per cell starting from base */
+	void copyField(int offset, FloatBuffer out, int base, int startRow, int endRow) {
+		for(int y = startRow; y < endRow; y++) {
+			for(int x = 0; x < width; x++) {
+				out.put(base + x + y * width, (float) data.get(index(x, y) + offset));
+			}
+		}
 	}
 
-	void pushColourChange(int x, int y) {
-		int index = index(x, y);
-		colour(index, tmpColourR(index), tmpColourG(index), tmpColourB(index));
+	/** Copies the value at offset for the rows [startRow, endRow) into the array held by a .npy file */
+	void copyField(int offset, NpyFile out, int startRow, int endRow) {
+		for(int y = startRow; y < endRow; y++) {
+			DoubleBuffer row = out.row(y);
+			int base = out.rowOffset(y);
+			
+			for(int x = 0; x < width; x++) {
+				row.put(base + x, data.get(index(x, y) + offset));
+			}
+		}
+	}
+	
+	void pushPressureRow(int y, int startX, int endX) {
+		long index = index(startX, y);
+		
+		for(int x = startX; x < endX; x++, index += DATA_SIZE) {
+			pressure(index, tmpPressure(index));
+		}
 	}
 
 	void applyForce(int x, int y) {
-		int index = index(x, y);
+		double force = force(x, y, width, height);
 
-		if(y < height * 13/21 && y > height * 8/21 && x < width * 4/7 && x > width * 3/7) {    
-			tmpVelocity(index, velocityX(index) - 100.0, velocityY(index));
+		if(force != 0.0) {
+			long index = index(x, y);
+			tmpVelocity(index, velocityX(index) + force, velocityY(index));
 		}
 	}
 
-	void calculatePressure(int x, int y) {
-		int index = index(x, y);
-		int top, left, right, bottom;
+	/** How far the pressure of (x, y) is from solving the pressure equation, this is the change a Jacobi iteration would make */
+	double pressureResidual(int x, int y) {
+		return Math.abs(jacobiPressure(x, y) - pressure(index(x, y)));
+	}
+
+	private double jacobiPressure(int x, int y) {
+		long top, left, right, bottom;
 
 		top = get(x, y + 1);
 		left = get(x - 1, y);
@@ -283,45 +409,41 @@ public class FluidCellArray {
 		double newPressure = pressure(top) + pressure(left) + pressure(bottom) + pressure(right) - 1 * 1 * divergence(x, y);
 		newPressure *= 0.25;
 		
-		tmpPressure(index, newPressure);
+		return newPressure;
 	}
 
 	public Color getColour(int x, int y) {
-		int index = index(x, y);
+		return new Color(getARGB(x, y));
+	}
+	
+	/** The colour of the cell in the velocity or pressure colour modes, as a packed ARGB int */
+	int getARGB(int x, int y) {
+		long index = index(x, y);
 		
 		if(isSolid(x, y))
-			return Color.BLACK;
+			return ColourMap.BLACK;
 		
 		switch(colourMode) {
-		case 0:
-			double r = colourR(index);
-			double g = colourG(index);
-			double b = colourB(index);
-			
-			double acc = r * r + g * g + b * b;
-			acc = Math.sqrt(acc);
-
-			r = r / acc;
-			g = g / acc;
-			b = b / acc;
-
-			return new Color(clamp((float) r), clamp((float) g), clamp((float) b));
 		case 1:
-			return new Color(exp(velocityX(index) * 0.0005), exp(velocityY(index) * 0.0005), 1f);
+			return ColourMap.velocity(velocityX(index), velocityY(index));
 		case 2:
-			double pressure = pressure(index);
-			return new Color(exp(pressure * 0.005), exp(pressure * 0.00005), exp(pressure * 0.0000005));
+			return ColourMap.pressure(pressure(index));
 		}
 		
-		return null;
-	}
-	
-
-	float clamp(float f) {
-		return Math.min(Math.max(0, f), 1);
+		return ColourMap.BLACK;
 	}
 
 	boolean isSolid(int x, int y) {
+		return isSolid(x, y, width, height);
+	}
+	
+	/** The force on the cell (x, y) in the x direction, this is a fixed function of the grid size like the obstacle */
+	static double force(int x, int y, int width, int height) {
+		return y < height * 13/21 && y > height * 8/21 && x < width * 4/7 && x > width * 3/7 ? -100.0 : 0.0;
+	}
+	
+	/** The obstacle layout, this is a fixed function of the grid size so that recordings can reproduce it */
+	static boolean isSolid(int x, int y, int width, int height) {
 		if(x == 0 || y == 0 || x == width - 1 || y == height - 1) {
 			return true;
 		}
@@ -331,12 +453,39 @@ public class FluidCellArray {
 				&& !(y < height * 23/42 && x < width * 23/42);
 	}
 	
-	private float exp(double x) {
-		return (float) (Math.atan(x) / Math.PI + 0.5);
+	/** 
+	 * True if any cell in [x0, x1) by [y0, y1) could be solid. This is conservative, the gap inside the obstacle is treated
+	 * as if it were solid.
+	 */
+	static boolean nearSolid(int x0, int y0, int x1, int y1, int width, int height) {
+		if(x0 <= 0 || y0 <= 0 || x1 >= width || y1 >= height) {
+			return true;
+		}
+		
+		return x0 < width * 4/7 && x1 > width * 3/7 + 1
+				&& y0 < height * 4/7 && y1 > height * 3/7 + 1;
+	}
+	
+	/** 
+	 * The largest change in either component of the velocity of (x, y) since the last call, last holds the velocity of each
+	 * cell from the last call and is updated.
+	 */
+	double velocityChange(int x, int y, CellStorage last) {
+		long index = index(x, y);
+		long cell = last.index(x, y);
+		
+		double vx = velocityX(index);
+		double vy = velocityY(index);
+		double change = Math.max(Math.abs(vx - last.get(cell)), Math.abs(vy - last.get(cell + 1)));
+		
+		last.set(cell, vx);
+		last.set(cell + 1, vy);
+		
+		return change;
 	}
-
+	
 	double velocitySq(int x, int y) {
-		int index = index(x, y);
+		long index = index(x, y);
 		double vx, vy;
 		vx = velocityX(index);
 		vy = velocityY(index);
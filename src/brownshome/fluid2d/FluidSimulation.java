@@ -4,15 +4,32 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Graphics;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.DoubleAccumulator;
 import java.util.function.Consumer;
 import java.util.function.ToDoubleFunction;
 
+import brownshome.fluid2d.Workers.RangeCall;
 import brownshome.vecmath.IVec2;
 import brownshome.vecmath.MVec2;
 import brownshome.vecmath.Vec2;
@@ -24,25 +41,265 @@ public class FluidSimulation {
 	final double viscocity;
 	private boolean fixedTimestep = false;
 	private long sims = 0;
+	private volatile long tickCount = 0;
 	private long start = 0;
 	private final int granularity;
 	
+	/** The size of the tiles used by {@link #setActiveTileThresholds(double, double, double)} */
+	private final int tileSize;
+	
 	private FluidCellArray array;
+	private DyeField dye;
+	
+	/** Checkpoints that will be snapshotted at the end of the next tick */
+	private final Queue<CheckpointRequest> checkpointRequests = new ConcurrentLinkedQueue<>();
+	private final ExecutorService checkpointWriter = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Checkpoint Writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	/** The fields that the stages of a tick read and write, the MacCormack forward buffers count as temporary fields */
+	private enum Buffer {
+		VELOCITY, TMP_VELOCITY, PRESSURE, TMP_PRESSURE, DYE, TMP_DYE
+	}
+	
+	/** Runs the stages of a tick, each stage waits on its own parallel passes so these threads spend most of their time idle */
+	private final ExecutorService stageRunner = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "Tick Stage");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private volatile FieldRecorder recorder;
+	
+	private static final class NpyMirror {
+		final NpyFile file;
+		final int interval;
+		final RangeCall copy;
+		
+		NpyMirror(NpyFile file, int interval, RangeCall copy) {
+			this.file = file;
+			this.interval = interval;
+			this.copy = copy;
+		}
+	}
+	
+	private final List<NpyMirror> npyMirrors = new CopyOnWriteArrayList<>();
+	
+	private volatile FrameRingBuffer frameRing;
+	private volatile ImageSequenceWriter imageWriter;
+	
+	/** The region of the simulation that is shown, as fractions of the size of the simulation */
+	private static final class View {
+		final double x, y, size;
+		
+		View(double x, double y, double size) {
+			this.size = size;
+			this.x = Math.min(Math.max(0.0, x), 1.0 - size);
+			this.y = Math.min(Math.max(0.0, y), 1.0 - size);
+		}
+	}
+	
+	private volatile View view = new View(0, 0, 1);
+	private MipPyramid pyramid;
+	
+	/** The changes since the tiles of the pyramid were drawn, these are only used by paint */
+	private TileChanges tileChanges;
+	private int drawnColourMode = -1;
+	private volatile float repaintThreshold = 1f / 255f;
+	
+	/** Guards the steady state detection, and is notified when the simulation should return to the full tick rate */
+	private final Object idle = new Object();
+	/** The velocity of each cell at the end of the last tick, banded like the grid so that any grid size can be held */
+	private volatile CellStorage lastVelocity;
+	private double steadyThreshold;
+	private int steadyTicks;
+	private long idlePeriod;
+	private int quietTicks = 0;
+	
+	/** The tiles that the advection and the solvers are run over, or null to run them over the whole grid */
+	private volatile ActiveTiles activeTiles;
+	
+	private volatile AdvectionScheme advectionScheme = AdvectionScheme.SEMI_LAGRANGIAN;
+	private volatile double courantNumber = AdvectionScheme.SEMI_LAGRANGIAN.courantNumber;
+	
+	/** Runs the Jacobi solvers with each worker waiting only on its neighbours, rather than on all of them each pass */
+	private volatile boolean wavefront = false;
+	
+	/** The number of Jacobi iterations of the diffusion and pressure solvers in each tick */
+	static final int DIFFUSION_ITERATIONS = 80;
+	static final int PRESSURE_ITERATIONS = 50;
+	
+	/** The number of partial histograms that the tracer particles are binned into in parallel */
+	private static final int TRACER_BIN_SLICES = 8;
+	
+	private volatile TracerParticles tracers;
+	private int[][] tracerBins;
+	private int[] tracerDensity;
 
 	public FluidSimulation(int gridWidth, int gridHeight, double viscocity, double timestep, int granularity) {
-		array = new FluidCellArray(gridWidth, gridHeight);
+		this(gridWidth, gridHeight, viscocity, timestep, granularity, 1);
+	}
+	
+	/** Creates a simulation where the dye is stored at dyeScale times the resolution of the velocity grid */
+	public FluidSimulation(int gridWidth, int gridHeight, double viscocity, double timestep, int granularity, int dyeScale) {
+		this(gridWidth, gridHeight, viscocity, timestep, granularity, dyeScale, Scalar.defaultColours());
+	}
+	
+	/** 
+	 * Creates a simulation that carries the given passive scalars, stored at dyeScale times the resolution of the velocity
+	 * grid. The first three scalars are displayed as red, green and blue.
+	 */
+	public FluidSimulation(int gridWidth, int gridHeight, double viscocity, double timestep, int granularity, int dyeScale, Scalar... scalars) {
+		this(gridWidth, gridHeight, viscocity, timestep, granularity, dyeScale, StorageMode.HEAP, scalars);
+	}
+	
+	/** 
+	 * Creates a simulation that stores its grids as given by storage. Off heap grids are freed when the simulation is
+	 * garbage collected.
+	 */
+	public FluidSimulation(int gridWidth, int gridHeight, double viscocity, double timestep, int granularity, int dyeScale, StorageMode storage, Scalar... scalars) {
+		this(gridWidth, gridHeight, viscocity, timestep, new Tuning(Tuning.DEFAULT_THREADS, granularity, ActiveTiles.TILE_SIZE), dyeScale, storage, scalars);
+	}
+	
+	/** Creates a simulation with the default scalars that runs with the thread count, granularity and tile size of tuning */
+	public FluidSimulation(int gridWidth, int gridHeight, double viscocity, double timestep, Tuning tuning, int dyeScale) {
+		this(gridWidth, gridHeight, viscocity, timestep, tuning, dyeScale, StorageMode.HEAP, Scalar.defaultColours());
+	}
+	
+	public FluidSimulation(int gridWidth, int gridHeight, double viscocity, double timestep, Tuning tuning, int dyeScale, StorageMode storage, Scalar... scalars) {
+		if(dyeScale < 1) {
+			throw new IllegalArgumentException("The dye scale must be at least 1: " + dyeScale);
+		}
+		
+		array = new FluidCellArray(gridWidth, gridHeight, storage);
+		dye = new DyeField(array, gridWidth, gridHeight, dyeScale, scalars, storage);
 
 		this.gridWidth = gridWidth;
 		this.gridHeight = gridHeight;
 		this.viscocity = viscocity;
-		this.granularity = granularity;
+		this.granularity = tuning.granularity;
+		this.tileSize = tuning.tileSize;
+		
+		workers = new Workers(tuning);
 		
 		if(timestep != 0.0) {
 			fixedTimestep = true;
 			this.timestep = timestep;
 		}
+		
+		//Off heap pages are first touched by the worker that owns their rows in every pass, so they are local to that
+		//worker. Heap arrays are zeroed by the allocating thread, so their placement is left to -XX:+UseNUMA.
+		parallelRange(gridHeight, array.storage().bandRows, array::initialise);
+		parallelRange(dye.height, dye.storage().bandRows, dye::initialise);
 	}
 
+	/** Selects the advection scheme, this also resets the Courant number to the default for that scheme */
+	public void setAdvectionScheme(AdvectionScheme scheme) {
+		if(scheme == AdvectionScheme.MAC_CORMACK) {
+			synchronized(this) {
+				if(array.enableMacCormack()) {
+					parallelRange(gridHeight, array.storage().bandRows, array::clearForward);
+				}
+				
+				if(dye.enableMacCormack()) {
+					parallelRange(dye.height, dye.storage().bandRows, dye::clearForward);
+				}
+			}
+		}
+		
+		courantNumber = scheme.courantNumber;
+		advectionScheme = scheme;
+		wake();
+	}
+	
+	/** 
+	 * Selects whether each worker in the diffusion and pressure solvers only waits for the workers on the rows above and
+	 * below it to finish an iteration. This hides a slow worker rather than waiting on it in every pass. The results are 
+	 * the same either way. Active tiles are always solved with a barrier between passes.
+	 */
+	public void setWavefrontSolver(boolean enabled) {
+		wavefront = enabled;
+	}
+	
+	/** Sets the number of cells that the fastest fluid may move in one tick when the timestep is not fixed */
+	public void setCourantNumber(double courantNumber) {
+		this.courantNumber = courantNumber;
+		wake();
+	}
+	
+	/** 
+	 * Only runs the advection and the iterative solvers over the tiles of the grid that have a speed, dye gradient or 
+	 * pressure residual above the given thresholds, and the tiles next to them. The rest of the grid is left as it is.
+	 */
+	public void setActiveTileThresholds(double speed, double dyeGradient, double pressureResidual) {
+		activeTiles = new ActiveTiles(gridWidth, gridHeight, tileSize, speed, dyeGradient, pressureResidual);
+		wake();
+	}
+	
+	/** Runs every pass over the whole grid again */
+	public void disableActiveTiles() {
+		activeTiles = null;
+		wake();
+	}
+	
+	/** 
+	 * Detects when the flow has settled, which is when the largest change in velocity in a tick, relative to the fastest 
+	 * velocity, has stayed below threshold for the given number of ticks. While the flow is steady {@link #awaitTick()} 
+	 * slows the simulation down to one tick every idlePeriod milliseconds, or does not slow it down if idlePeriod is zero.
+	 * A threshold of zero turns the detection off.
+	 */
+	public void setSteadyStateDetection(double threshold, int ticks, long idlePeriod) {
+		if(idlePeriod < 0) {
+			throw new IllegalArgumentException("The idle period cannot be negative: " + idlePeriod);
+		}
+		
+		synchronized(idle) {
+			steadyThreshold = threshold;
+			steadyTicks = ticks;
+			this.idlePeriod = idlePeriod;
+			lastVelocity = threshold > 0 ? CellStorage.allocate(gridWidth, gridHeight, 2, StorageMode.HEAP) : null;
+		}
+		
+		wake();
+	}
+	
+	/** True if the flow has settled, see {@link #setSteadyStateDetection(double, int, long)} */
+	public boolean isSteady() {
+		synchronized(idle) {
+			return lastVelocity != null && quietTicks >= steadyTicks;
+		}
+	}
+	
+	/** Returns to the full tick rate, this should be called when anything that could disturb a steady flow changes */
+	public void wake() {
+		synchronized(idle) {
+			quietTicks = 0;
+			idle.notifyAll();
+		}
+	}
+	
+	/** Waits until the next tick should be run. This returns straight away unless the flow is steady and being slowed down. */
+	public void awaitTick() throws InterruptedException {
+		synchronized(idle) {
+			//A wait of zero would never time out
+			if(idlePeriod > 0 && isSteady()) {
+				idle.wait(idlePeriod);
+			}
+		}
+	}
+	
+	private void updateSteadyState(double change) {
+		synchronized(idle) {
+			if(change < steadyThreshold) {
+				quietTicks++;
+			} else {
+				quietTicks = 0;
+			}
+		}
+	}
+	
 	public double simSpeed() {
 		return 1e9 *  sims / (System.nanoTime() - start);
 	}
@@ -67,101 +324,919 @@ public class FluidSimulation {
 			if(maxVelocity == 0)
 				timestep = 0.01;
 			else
-				timestep = 2.0 / maxVelocity;
+				timestep = courantNumber / maxVelocity;
+		}
+		
+		ActiveTiles tiles = activeTiles;
+		if(tiles != null) {
+			parallelRange(tiles.tilesY, (start, end) -> tiles.measure(array, dye, gridWidth, gridHeight, start, end));
+			tiles.update();
+		}
+		
+		//The stages of the tick, the dye stages run alongside the velocity stages that they do not depend on
+		TaskGraph<Buffer> graph = new TaskGraph<>();
+		
+		if(advectionScheme == AdvectionScheme.MAC_CORMACK) {
+			graph.add(EnumSet.of(Buffer.VELOCITY), EnumSet.of(Buffer.TMP_VELOCITY), () -> {
+				foreachActive(tiles, true, (y, startX, endX) -> array.macCormackForwardRow(y, startX, endX, timestep));
+				foreachActive(tiles, false, (y, startX, endX) -> array.macCormackCorrectionRow(y, startX, endX, timestep));
+			});
 			
-			System.out.printf("%f\n", timestep);
+			graph.add(EnumSet.of(Buffer.VELOCITY, Buffer.DYE), EnumSet.of(Buffer.TMP_DYE), () -> {
+				foreachActive(tiles, true, dye.storage(), dye.scale, (y, startX, endX) -> dye.macCormackForwardRow(y, startX, endX, timestep));
+				foreachActive(tiles, false, dye.storage(), dye.scale, (y, startX, endX) -> dye.macCormackCorrectionRow(y, startX, endX, timestep));
+			});
+		} else {
+			graph.add(EnumSet.of(Buffer.VELOCITY), EnumSet.of(Buffer.TMP_VELOCITY), 
+					() -> foreachActive(tiles, false, (y, startX, endX) -> array.advectionRow(y, startX, endX, timestep)));
+			
+			graph.add(EnumSet.of(Buffer.VELOCITY, Buffer.DYE), EnumSet.of(Buffer.TMP_DYE), 
+					() -> foreachActive(tiles, false, dye.storage(), dye.scale, (y, startX, endX) -> dye.advectionRow(y, startX, endX, timestep)));
 		}
 		
-		foreach((x, y) -> array.advection(x, y, timestep));
+		graph.add(EnumSet.of(Buffer.TMP_VELOCITY), EnumSet.of(Buffer.VELOCITY), () -> {
+			synchronized(this) {
+				foreachActive(tiles, false, array::pushVelocityRow);
+			}
+		});
 		
-		synchronized(this) {
-			foreach((x, y) -> {
+		graph.add(EnumSet.of(Buffer.TMP_DYE), EnumSet.of(Buffer.DYE), () -> {
+			synchronized(this) {
+				foreachActive(tiles, false, dye.storage(), dye.scale, dye::pushColourRow);
+			}
+		});
+		
+		Stencil diffusion = FluidCellArray.diffusionStencil(viscocity, timestep);
+		graph.add(EnumSet.noneOf(Buffer.class), EnumSet.of(Buffer.VELOCITY, Buffer.TMP_VELOCITY), 
+				() -> solve(tiles, DIFFUSION_ITERATIONS, (y, startX, endX) -> array.apply(diffusion, y, startX, endX), array::pushVelocityRow));
+		
+		Stencil pressure = FluidCellArray.pressureStencil();
+		graph.add(EnumSet.of(Buffer.VELOCITY), EnumSet.of(Buffer.PRESSURE, Buffer.TMP_PRESSURE), 
+				() -> solve(tiles, PRESSURE_ITERATIONS, (y, startX, endX) -> array.apply(pressure, y, startX, endX), array::pushPressureRow));
+
+		//The change in velocity since the last tick is found in the same pass, if steady states are being detected
+		CellStorage lastVelocity = this.lastVelocity;
+		DoubleAccumulator velocityChange = new DoubleAccumulator(Math::max, 0.0);
+		DoubleAccumulator speed = new DoubleAccumulator(Math::max, 0.0);
+		
+		//The commit and the force are fused onto the gradient, as they only touch the cell that the gradient has just written
+		Stencil gradient = FluidCellArray.gradientStencil().then((y, startX, endX) -> {
+			double rowChange = 0.0;
+			double rowSpeed = 0.0;
+			
+			for(int x = startX; x < endX; x++) {
 				array.pushVelocityChange(x, y);
-				array.pushColourChange(x, y);
+				array.applyForce(x, y);
+				array.pushVelocityChange(x, y);
+				
+				if(lastVelocity != null) {
+					rowChange = Math.max(rowChange, array.velocityChange(x, y, lastVelocity));
+					rowSpeed = Math.max(rowSpeed, array.velocitySq(x, y));
+				}
+			}
+			
+			if(lastVelocity != null) {
+				velocityChange.accumulate(rowChange);
+				speed.accumulate(rowSpeed);
+			}
+		}, FluidCellArray.VELOCITY_OFFSET, FluidCellArray.VELOCITY_OFFSET + 1, FluidCellArray.TMP_VELOCITY_OFFSET, FluidCellArray.TMP_VELOCITY_OFFSET + 1);
+		
+		graph.add(EnumSet.of(Buffer.PRESSURE), EnumSet.of(Buffer.VELOCITY, Buffer.TMP_VELOCITY), 
+				() -> foreach((y, startX, endX) -> array.apply(gradient, y, startX, endX)));
+		
+		graph.run(stageRunner);
+		
+		if(lastVelocity != null) {
+			updateSteadyState(velocityChange.get() / Math.max(Math.sqrt(speed.get()), Double.MIN_NORMAL));
+		}
+		
+		synchronized(this) {
+			TileChanges tileChanges = this.tileChanges;
+			
+			if(tileChanges != null) {
+				parallelRange(tileChanges.tilesY, (start, end) -> tileChanges.update(array, dye, start, end));
+			}
+		}
+		
+		TracerParticles tracers = this.tracers;
+		if(tracers != null) {
+			moveTracers(tracers);
+		}
+		
+		sims++;
+		tickCount++;
+		
+		FieldRecorder recorder = this.recorder;
+		if(recorder != null && tickCount % recorder.interval == 0) {
+			recordFrame(recorder);
+		}
+		
+		for(NpyMirror mirror : npyMirrors) {
+			if(mirror.file.isClosed()) {
+				npyMirrors.remove(mirror);
+			} else if(tickCount % mirror.interval == 0) {
+				parallelRange(mirror.file.height, mirror.copy);
+			}
+		}
+		
+		FrameRingBuffer frameRing = this.frameRing;
+		if(frameRing != null && tickCount % frameRing.interval == 0) {
+			if(frameRing.isClosed()) {
+				this.frameRing = null;
+			} else {
+				publishFrame(frameRing);
+			}
+		}
+		
+		ImageSequenceWriter imageWriter = this.imageWriter;
+		if(imageWriter != null && tickCount % imageWriter.interval == 0) {
+			int[] pixels = imageWriter.acquire();
+			
+			if(pixels != null) {
+				IntBuffer out = IntBuffer.wrap(pixels);
+				parallelRange(dye.height, (start, end) -> render(out, start, end));
+				imageWriter.submit(pixels);
+			}
+		}
+		
+		for(CheckpointRequest request; (request = checkpointRequests.poll()) != null; ) {
+			writeCheckpoint(request);
+		}
+	}
+	
+	/** 
+	 * Starts writing the velocity, pressure and scalar fields to path every interval ticks. Any previous recording is
+	 * stopped. The planes are named velocityX, velocityY, pressure and then the names of the scalars.
+	 */
+	public FieldRecorder startRecording(Path path, int interval, FieldRecorder.Quantization quantization, 
+			FieldRecorder.Compression compression, FieldRecorder.Backpressure backpressure) throws IOException {
+		
+		String[] scalars = dye.names();
+		String[] names = new String[3 + scalars.length];
+		int[] widths = new int[names.length];
+		int[] heights = new int[names.length];
+		
+		names[0] = "velocityX";
+		names[1] = "velocityY";
+		names[2] = "pressure";
+		
+		for(int plane = 0; plane < names.length; plane++) {
+			if(plane >= 3) {
+				names[plane] = scalars[plane - 3];
+				widths[plane] = dye.width;
+				heights[plane] = dye.height;
+			} else {
+				widths[plane] = gridWidth;
+				heights[plane] = gridHeight;
+			}
+		}
+		
+		FieldRecorder newRecorder = new FieldRecorder(path, interval, quantization, compression, backpressure, names, widths, heights);
+		stopRecording();
+		recorder = newRecorder;
+		return newRecorder;
+	}
+	
+	/** Stops recording, waiting for any frames that have been captured to be written */
+	public void stopRecording() throws IOException {
+		FieldRecorder old = recorder;
+		recorder = null;
+		
+		if(old != null) {
+			old.close();
+		}
+	}
+	
+	private void recordFrame(FieldRecorder recorder) {
+		FieldRecorder.Frame frame = recorder.acquire();
+		
+		if(frame == null) {
+			return;
+		}
+		
+		FloatBuffer values = frame.values;
+		
+		parallelRange(gridHeight, (start, end) -> {
+			array.copyField(FluidCellArray.VELOCITY_OFFSET, values, recorder.planeStart(0), start, end);
+			array.copyField(FluidCellArray.VELOCITY_OFFSET + 1, values, recorder.planeStart(1), start, end);
+			array.copyField(FluidCellArray.PRESSURE_OFFSET, values, recorder.planeStart(2), start, end);
+		});
+		
+		parallelRange(dye.height, (start, end) -> {
+			for(int channel = 0; channel < dye.channels(); channel++) {
+				dye.copyChannel(channel, values, recorder.planeStart(3 + channel), start, end);
+			}
+		});
+		
+		recorder.submit(frame, tickCount);
+	}
+	
+	/** Writes a field to a NumPy .npy file as a (gridHeight, gridWidth) array of doubles */
+	public void exportNpy(Field field, Path path) throws IOException {
+		try(NpyFile file = new NpyFile(path, gridWidth, gridHeight)) {
+			synchronized(this) {
+				parallelRange(gridHeight, (start, end) -> array.copyField(field.offset, file, start, end));
+			}
+		}
+	}
+	
+	/** Writes the named scalar to a NumPy .npy file as an array of doubles at the resolution of the dye grid */
+	public void exportNpy(String scalar, Path path) throws IOException {
+		int channel = channel(scalar);
+		
+		try(NpyFile file = new NpyFile(path, dye.width, dye.height)) {
+			synchronized(this) {
+				parallelRange(dye.height, (start, end) -> dye.copyChannel(channel, file, start, end));
+			}
+		}
+	}
+	
+	/** 
+	 * Keeps a memory mapped .npy file up to date with a field, updating it every interval ticks. Other processes can map the
+	 * file to read the field in place. Closing the returned file stops the updates.
+	 */
+	public NpyFile mirrorNpy(Field field, Path path, int interval) throws IOException {
+		NpyFile file = new NpyFile(path, gridWidth, gridHeight);
+		npyMirrors.add(new NpyMirror(file, interval, (start, end) -> array.copyField(field.offset, file, start, end)));
+		return file;
+	}
+	
+	/** Keeps a memory mapped .npy file up to date with the named scalar, see {@link #mirrorNpy(Field, Path, int)} */
+	public NpyFile mirrorNpy(String scalar, Path path, int interval) throws IOException {
+		int channel = channel(scalar);
+		NpyFile file = new NpyFile(path, dye.width, dye.height);
+		npyMirrors.add(new NpyMirror(file, interval, (start, end) -> dye.copyChannel(channel, file, start, end)));
+		return file;
+	}
+	
+	/** 
+	 * Publishes a frame every interval ticks into a shared memory ring buffer of the given number of slots, replacing any
+	 * previous ring buffer. ARGB frames hold the current colour mode at the resolution of the dye grid, and FIELDS frames
+	 * hold the same planes as {@link #startRecording}. Publishing never waits for readers, see {@link FrameRingBuffer}.
+	 */
+	public FrameRingBuffer publishFrames(Path path, int slots, int interval, FrameRingBuffer.Format format) throws IOException {
+		if(interval < 1) {
+			throw new IllegalArgumentException("The interval must be at least 1: " + interval);
+		}
+		
+		long payload;
+		int planes;
+		
+		if(format == FrameRingBuffer.Format.ARGB) {
+			planes = 1;
+			payload = (long) dye.width * dye.height * Integer.BYTES;
+		} else {
+			planes = 3 + dye.channels();
+			payload = ((long) gridWidth * gridHeight * 3 + (long) dye.width * dye.height * dye.channels()) * Float.BYTES;
+		}
+		
+		FrameRingBuffer newRing = new FrameRingBuffer(path, format, slots, interval, dye.width, dye.height, planes, payload);
+		stopPublishing();
+		frameRing = newRing;
+		return newRing;
+	}
+	
+	/** Stops publishing frames, the last frame is left in the ring buffer */
+	public void stopPublishing() throws IOException {
+		FrameRingBuffer old = frameRing;
+		frameRing = null;
+		
+		if(old != null) {
+			old.close();
+		}
+	}
+	
+	private void publishFrame(FrameRingBuffer frameRing) {
+		if(frameRing.format == FrameRingBuffer.Format.ARGB) {
+			IntBuffer pixels = frameRing.beginARGB();
+			parallelRange(dye.height, (start, end) -> render(pixels, start, end));
+		} else {
+			FloatBuffer values = frameRing.beginFields();
+			int planeSize = gridWidth * gridHeight;
+			
+			parallelRange(gridHeight, (start, end) -> {
+				array.copyField(FluidCellArray.VELOCITY_OFFSET, values, 0, start, end);
+				array.copyField(FluidCellArray.VELOCITY_OFFSET + 1, values, planeSize, start, end);
+				array.copyField(FluidCellArray.PRESSURE_OFFSET, values, planeSize * 2, start, end);
+			});
+			
+			parallelRange(dye.height, (start, end) -> {
+				for(int channel = 0; channel < dye.channels(); channel++) {
+					dye.copyChannel(channel, values, planeSize * 3 + channel * dye.width * dye.height, start, end);
+				}
 			});
 		}
 		
-		for(int i = 0; i < 80; i++) { 
-			foreach((x, y) -> array.performDiffusionIteration(x, y, viscocity, timestep));
-			foreach(array::pushVelocityChange);
+		frameRing.publish(tickCount);
+	}
+	
+	/** 
+	 * Renders the current colour mode every interval ticks, writing each frame to a numbered file in directory. The frames
+	 * are at the resolution of the dye grid and are encoded by the given number of worker threads, any previous rendering
+	 * is stopped.
+	 */
+	public ImageSequenceWriter renderFrames(Path directory, int interval, ImageSequenceWriter.Format format, int workers) throws IOException {
+		return startRendering(new ImageSequenceWriter(directory, null, format, dye.width, dye.height, interval, workers));
+	}
+	
+	/** Renders frames to a stream, such as a pipe to a video encoder, see {@link #renderFrames(Path, int, ImageSequenceWriter.Format, int)} */
+	public ImageSequenceWriter renderFrames(OutputStream out, int interval, ImageSequenceWriter.Format format, int workers) throws IOException {
+		return startRendering(new ImageSequenceWriter(null, out, format, dye.width, dye.height, interval, workers));
+	}
+	
+	private ImageSequenceWriter startRendering(ImageSequenceWriter newWriter) throws IOException {
+		stopRendering();
+		imageWriter = newWriter;
+		return newWriter;
+	}
+	
+	/** Stops rendering, waiting for any frames that have been rendered to be written */
+	public void stopRendering() throws IOException {
+		ImageSequenceWriter old = imageWriter;
+		imageWriter = null;
+		
+		if(old != null) {
+			old.close();
 		}
-
-		for(int i = 0; i < 50; i++) {
-			foreach(array::calculatePressure);
-			foreach(array::pushPressureChange);
+	}
+	
+	/** Renders rows [startRow, endRow) of the current colour mode at the resolution of the dye grid as packed ARGB values */
+	private void render(IntBuffer out, int startRow, int endRow) {
+		int colourMode = array.colourMode;
+		float tracerScale = tracerScale();
+		
+		for(int y = startRow; y < endRow; y++) {
+			int row = y * dye.width;
+			
+			for(int x = 0; x < dye.width; x++) {
+				out.put(row + x, pixel(colourMode, tracerScale, x, y));
+			}
 		}
-
-		foreach((x, y) -> {
-			array.subtractPressureGradient(x, y);
-			array.pushVelocityChange(x, y);
-			array.applyForce(x, y);
-			array.pushVelocityChange(x, y);
+	}
+	
+	/** The opacity that each tracer in a cell adds to the overlay, or zero if there are no tracers */
+	private float tracerScale() {
+		TracerParticles tracers = this.tracers;
+		
+		if(tracerDensity == null || tracers == null || tracers.count() == 0) {
+			return 0f;
+		}
+		
+		//Full opacity is reached at four times the average density
+		return 0.25f * gridWidth * gridHeight / tracers.count();
+	}
+	
+	private int pixel(int colourMode, float tracerScale, int x, int y) {
+		int scale = dye.scale;
+		int argb;
+		
+		if(colourMode == 0) {
+			argb = dye.getARGB(x, y);
+		} else if(colourMode >= 3) {
+			argb = dye.getScalarARGB(x, y, colourMode - 3);
+		} else {
+			argb = array.getARGB(x / scale, y / scale);
+		}
+		
+		if(tracerScale != 0f) {
+			int density = tracerDensity[x / scale + y / scale * gridWidth];
+			
+			if(density != 0) {
+				argb = ColourMap.overlay(argb, Math.min(density * tracerScale, 0.8f));
+			}
+		}
+		
+		return argb;
+	}
+	
+	/** The number of ticks that have been run, including those run before the simulation was restored from a checkpoint */
+	public long tickCount() {
+		return tickCount;
+	}
+	
+	private static final class CheckpointRequest {
+		final Path path;
+		final CompletableFuture<Path> result = new CompletableFuture<>();
+		
+		CheckpointRequest(Path path) {
+			this.path = path;
+		}
+	}
+	
+	/** 
+	 * Writes the state of the simulation to path at the end of the next tick. The grid is copied into a snapshot on the
+	 * simulation thread and written out in the background, so the simulation does not wait for the disk.
+	 */
+	public CompletableFuture<Path> checkpoint(Path path) {
+		CheckpointRequest request = new CheckpointRequest(path);
+		checkpointRequests.add(request);
+		return request.result;
+	}
+	
+	private void writeCheckpoint(CheckpointRequest request) {
+		Checkpoint checkpoint = new Checkpoint();
+		checkpoint.gridWidth = gridWidth;
+		checkpoint.gridHeight = gridHeight;
+		checkpoint.dyeScale = dye.scale;
+		checkpoint.scalars = dye.names();
+		checkpoint.advectionScheme = advectionScheme;
+		checkpoint.fixedTimestep = fixedTimestep;
+		checkpoint.viscocity = viscocity;
+		checkpoint.timestep = timestep;
+		checkpoint.courantNumber = courantNumber;
+		checkpoint.tickCount = tickCount;
+		checkpoint.velocity = array.storage().duplicate();
+		checkpoint.dye = dye.storage().duplicate();
+		
+		checkpointWriter.execute(() -> {
+			try {
+				checkpoint.write(request.path);
+				request.result.complete(request.path);
+			} catch(IOException | RuntimeException e) {
+				request.result.completeExceptionally(e);
+			} finally {
+				checkpoint.velocity.free();
+				checkpoint.dye.free();
+			}
 		});
+	}
+	
+	/** Creates a simulation from a checkpoint written by {@link #checkpoint(Path)} */
+	public static FluidSimulation restore(Path path, int granularity) throws IOException {
+		return restore(path, granularity, StorageMode.HEAP);
+	}
+	
+	/** Creates a simulation from a checkpoint, storing its grids as given by storage */
+	public static FluidSimulation restore(Path path, int granularity, StorageMode storage) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			Checkpoint checkpoint = Checkpoint.readHeader(channel);
+			
+			Scalar[] scalars = new Scalar[checkpoint.scalars.length];
+			for(int i = 0; i < scalars.length; i++) {
+				scalars[i] = new Scalar(checkpoint.scalars[i]);
+			}
+			
+			FluidSimulation simulation = new FluidSimulation(checkpoint.gridWidth, checkpoint.gridHeight, checkpoint.viscocity,
+					checkpoint.fixedTimestep ? checkpoint.timestep : 0.0, granularity, checkpoint.dyeScale, storage, scalars);
+			
+			simulation.setAdvectionScheme(checkpoint.advectionScheme);
+			simulation.courantNumber = checkpoint.courantNumber;
+			simulation.timestep = checkpoint.timestep;
+			simulation.tickCount = checkpoint.tickCount;
+			
+			checkpoint.velocity = simulation.array.storage();
+			checkpoint.dye = simulation.dye.storage();
+			checkpoint.readData(channel);
+			
+			return simulation;
+		}
+	}
+	
+	/** 
+	 * Replaces the tracer particles with count particles spread evenly over the grid. A count of zero removes them. The
+	 * tracers are counted into an array with an entry for each cell, so they cannot be used on grids of more than
+	 * {@link CellStorage#MAX_ARRAY_SIZE} cells.
+	 */
+	public void setTracerCount(int count) {
+		if(count != 0 && (long) gridWidth * gridHeight > CellStorage.MAX_ARRAY_SIZE) {
+			throw new IllegalArgumentException(String.format("Tracers cannot be used on a %dx%d grid, the grid can have at most %d cells", 
+					gridWidth, gridHeight, CellStorage.MAX_ARRAY_SIZE));
+		}
 		
-		sims++;
+		if(count == 0) {
+			tracers = null;
+			
+			synchronized(this) {
+				tracerDensity = null;
+			}
+		} else {
+			tracers = new TracerParticles(count, gridWidth, gridHeight, System.nanoTime());
+		}
+		
+		wake();
+	}
+	
+	private void moveTracers(TracerParticles tracers) {
+		int count = tracers.count();
+		int cells = gridWidth * gridHeight;
+		int slices = Math.min(TRACER_BIN_SLICES, granularity);
+		
+		parallelRange(count, (start, end) -> tracers.advect(array, start, end, timestep));
+		
+		if(tracerBins == null) {
+			tracerBins = new int[slices][cells];
+		}
+		
+		parallelRange(slices, (start, end) -> {
+			for(int slice = start; slice < end; slice++) {
+				int[] bin = tracerBins[slice];
+				Arrays.fill(bin, 0);
+				tracers.bin(bin, (int) ((long) count * slice / slices), (int) ((long) count * (slice + 1) / slices));
+			}
+		});
+		
+		synchronized(this) {
+			if(tracerDensity == null) {
+				tracerDensity = new int[cells];
+			}
+			
+			int[] density = tracerDensity;
+			parallelRange(cells, (start, end) -> {
+				for(int i = start; i < end; i++) {
+					int sum = 0;
+					for(int[] bin : tracerBins) {
+						sum += bin[i];
+					}
+					
+					density[i] = sum;
+				}
+			});
+		}
 	}
 
+	/** 
+	 * A kernel that runs over the cells [startX, endX) of row y. Each kernel has its own row loop, so the call through 
+	 * this interface is made once per row rather than once per cell and the loop can be compiled for that kernel alone.
+	 */
 	@FunctionalInterface
-	private interface GridCall {
-		void call(int x, int y);
+	private interface RowCall {
+		void call(int y, int startX, int endX);
 	}
 	
-	private void foreachSingleThreaded(GridCall func) {
-		for(int x = 0; x < gridWidth; x++) {
-			for(int y = 0; y < gridHeight; y++) {
-				func.call(x, y);
+	/** The workers that run the parallel passes, see {@link Workers} */
+	private final Workers workers;
+	
+	/** Stops the worker threads once they are idle, the simulation cannot be ticked afterwards */
+	void shutdown() {
+		workers.shutdown();
+		stageRunner.shutdown();
+	}
+	
+	private void foreach(RowCall func) {
+		foreach(array.storage(), func);
+	}
+	
+	/** Runs func over every cell of a grid, with each block of rows made of whole bands of the grid's storage */
+	private void foreach(CellStorage grid, RowCall func) {
+		int width = grid.width;
+		
+		parallelRange(grid.height, grid.bandRows, (start, end) -> {
+			for(int y = start; y < end; y++) {
+				func.call(y, 0, width);
 			}
+		});
+	}
+
+	private void foreachActive(ActiveTiles tiles, boolean halo, RowCall func) {
+		foreachActive(tiles, halo, array.storage(), 1, func);
+	}
+	
+	/** 
+	 * Runs func over the cells of the active tiles, or of the halo around them, in a grid that is scale times finer than
+	 * the velocity grid. Every cell is visited if tiles is null.
+	 */
+	private void foreachActive(ActiveTiles tiles, boolean halo, CellStorage grid, int scale, RowCall func) {
+		if(tiles == null) {
+			foreach(grid, func);
+			return;
 		}
+		
+		int width = grid.width;
+		int height = grid.height;
+		
+		int tileSize = tiles.tileSize * scale;
+		
+		parallelRange(halo ? tiles.haloCount() : tiles.activeCount(), (start, end) -> {
+			for(int i = start; i < end; i++) {
+				int tile = halo ? tiles.halo(i) : tiles.active(i);
+				int startX = tile % tiles.tilesX * tileSize;
+				int startY = tile / tiles.tilesX * tileSize;
+				int endX = Math.min(width, startX + tileSize);
+				int endY = Math.min(height, startY + tileSize);
+				
+				for(int y = startY; y < endY; y++) {
+					func.call(y, startX, endX);
+				}
+			}
+		});
 	}
 
-	private final ExecutorService threadPool = Executors.newFixedThreadPool(8);
-	private void foreach(GridCall func) {
-		int blockHeight = (gridHeight - 1) / granularity + 1;
+	private void parallelRange(int length, RangeCall func) {
+		workers.parallelRange(length, func);
+	}
+	
+	private void parallelRange(int length, int alignment, RangeCall func) {
+		workers.parallelRange(length, alignment, func);
+	}
+	
+	/** Runs iterations of a Jacobi solver, with a barrier after each pass unless the wavefront solver can be used */
+	private void solve(ActiveTiles tiles, int iterations, RowCall compute, RowCall push) {
+		if(tiles == null && wavefront) {
+			wavefrontSolve(iterations, compute, push);
+			return;
+		}
+		
+		for(int i = 0; i < iterations; i++) {
+			foreachActive(tiles, false, compute);
+			foreachActive(tiles, false, push);
+		}
+	}
+	
+	/** 
+	 * Runs a Jacobi solver over the whole grid, where compute reads the cells next to it and push copies the result back.
+	 * Each worker runs every iteration over the rows it is given by {@link #foreach(RowCall)}, and only waits on the 
+	 * workers with the rows above and below it, see {@link Wavefront}.
+	 */
+	private void wavefrontSolve(int iterations, RowCall compute, RowCall push) {
+		int blockSize = workers.blockSize(gridHeight, array.storage().bandRows);
+		int blocks = (gridHeight - 1) / blockSize + 1;
+		
+		//Each part is the run of blocks that parallelRange gives to a worker
+		int[] owners = new int[workers.count()];
+		int[] starts = new int[workers.count() + 1];
+		int parts = 0;
+		
+		for(int block = 0; block < blocks; block++) {
+			int owner = workers.owner(block, blocks);
+			
+			if(parts == 0 || owners[parts - 1] != owner) {
+				owners[parts] = owner;
+				starts[parts++] = block * blockSize;
+			}
+		}
 		
-		CountDownLatch latch = new CountDownLatch(granularity);
+		starts[parts] = gridHeight;
 		
-		for(int block = 0; block < granularity; block++) {
-			final int blockStorage = block;
+		Wavefront wavefront = new Wavefront(parts);
+		CountDownLatch latch = new CountDownLatch(parts);
+		
+		for(int part = 0; part < parts; part++) {
+			final int partStorage = part;
+			int start = starts[part];
+			int end = starts[part + 1];
 			
-			threadPool.submit(() -> {
-				int limit = Math.min(gridHeight, blockHeight * (blockStorage + 1));
+			workers.submit(owners[part], () -> {
+				wavefront.join(partStorage);
 				
-				for(int y = blockHeight * blockStorage; y < limit; y++) {
-					for(int x = 0; x < gridWidth; x++) {
-						func.call(x, y);
+				try {
+					for(int i = 0; i < iterations; i++) {
+						//The rows next to this part must hold the last iteration before they are read
+						wavefront.await(partStorage, 2 * i);
+						
+						for(int y = start; y < end; y++) {
+							compute.call(y, 0, gridWidth);
+						}
+						
+						//The parts next to this one must have read its rows before they are overwritten
+						wavefront.finish(partStorage, 2 * i + 1);
+						wavefront.await(partStorage, 2 * i + 1);
+						
+						for(int y = start; y < end; y++) {
+							push.call(y, 0, gridWidth);
+						}
+						
+						wavefront.finish(partStorage, 2 * i + 2);
 					}
+				} finally {
+					wavefront.stop(partStorage);
+					latch.countDown();
 				}
-				
-				latch.countDown();
 			});
 		}
 		
-		try {
-			latch.await();
-		} catch (InterruptedException e) {
-			Thread.currentThread().interrupt();
-			throw new RuntimeException(e);
+		Workers.await(latch);
+	}
+
+	/** Batches smaller than this are sampled on the calling thread */
+	private static final int PARALLEL_PROBE_THRESHOLD = 4096;
+	
+	@FunctionalInterface
+	private interface Sampler {
+		double sample(double x, double y);
+	}
+	
+	/** Samples a field at the grid point (x, y) using bilinear interpolation */
+	public double probe(Field field, double x, double y) {
+		synchronized(this) {
+			return array.sample(x, y, field.offset);
+		}
+	}
+	
+	/** 
+	 * Samples a field at a batch of points. The points are stored as interleaved (x, y) pairs and the value for
+	 * the i-th point is written to out[i].
+	 */
+	public void probe(Field field, double[] points, double[] out) {
+		probe((x, y) -> array.sample(x, y, field.offset), points, out);
+	}
+	
+	/** 
+	 * Samples a field at a batch of points. The points are read from the remaining elements of points as interleaved
+	 * (x, y) pairs and the values are written into out starting at its position. The positions of the buffers are not changed.
+	 */
+	public void probe(Field field, FloatBuffer points, FloatBuffer out) {
+		probe((x, y) -> array.sample(x, y, field.offset), points, out);
+	}
+	
+	/** Samples the named scalar at the velocity grid point (x, y) using bilinear interpolation */
+	public double probe(String scalar, double x, double y) {
+		int channel = channel(scalar);
+		
+		synchronized(this) {
+			return dye.sample(x, y, channel);
+		}
+	}
+	
+	/** Samples the named scalar at a batch of velocity grid points, see {@link #probe(Field, double[], double[])} */
+	public void probe(String scalar, double[] points, double[] out) {
+		int channel = channel(scalar);
+		probe((x, y) -> dye.sample(x, y, channel), points, out);
+	}
+	
+	/** Samples the named scalar at a batch of velocity grid points, see {@link #probe(Field, FloatBuffer, FloatBuffer)} */
+	public void probe(String scalar, FloatBuffer points, FloatBuffer out) {
+		int channel = channel(scalar);
+		probe((x, y) -> dye.sample(x, y, channel), points, out);
+	}
+	
+	private int channel(String scalar) {
+		int channel = dye.channel(scalar);
+		
+		if(channel == -1) {
+			throw new IllegalArgumentException("No scalar named " + scalar);
+		}
+		
+		return channel;
+	}
+	
+	private void probe(Sampler sampler, double[] points, double[] out) {
+		if(points.length % 2 != 0) {
+			throw new IllegalArgumentException(String.format("Point array holds an odd number of coordinates: %d", points.length));
+		}
+		
+		int count = points.length / 2;
+		
+		if(out.length < count) {
+			throw new IllegalArgumentException(String.format("Output array too small: %d < %d", out.length, count));
+		}
+		
+		RangeCall call = (start, end) -> {
+			for(int i = start; i < end; i++) {
+				out[i] = sampler.sample(points[i * 2], points[i * 2 + 1]);
+			}
+		};
+		
+		synchronized(this) {
+			if(count < PARALLEL_PROBE_THRESHOLD) {
+				call.call(0, count);
+			} else {
+				parallelRange(count, call);
+			}
+		}
+	}
+	
+	private void probe(Sampler sampler, FloatBuffer points, FloatBuffer out) {
+		if(points.remaining() % 2 != 0) {
+			throw new IllegalArgumentException(String.format("Point buffer holds an odd number of coordinates: %d", points.remaining()));
+		}
+		
+		int count = points.remaining() / 2;
+		
+		if(out.remaining() < count) {
+			throw new IllegalArgumentException(String.format("Output buffer too small: %d < %d", out.remaining(), count));
+		}
+		
+		int pointsStart = points.position();
+		int outStart = out.position();
+		
+		RangeCall call = (start, end) -> {
+			for(int i = start; i < end; i++) {
+				double x = points.get(pointsStart + i * 2);
+				double y = points.get(pointsStart + i * 2 + 1);
+				out.put(outStart + i, (float) sampler.sample(x, y));
+			}
+		};
+		
+		synchronized(this) {
+			if(count < PARALLEL_PROBE_THRESHOLD) {
+				call.call(0, count);
+			} else {
+				parallelRange(count, call);
+			}
 		}
 	}
 
+	/** 
+	 * Draws the visible region of the simulation. The region is drawn at the coarsest level of detail that still has a 
+	 * pixel for every pixel of the window, and only the tiles of that level that have visibly changed are drawn again.
+	 */
 	public void paint(Graphics g, Dimension dimension) {
-		double width, height;
-		width = dimension.getWidth() / gridWidth;
-		height = dimension.getHeight() / gridHeight;
-
+		View view = this.view;
+		
 		synchronized(this) {
-			foreachSingleThreaded((x, y) -> {
-				g.setColor(array.getColour(x, y));
-				g.fillRect((int) (x * width), (int) (y * height), 1 + (int) width, 1 + (int) height);
+			if(pyramid == null) {
+				pyramid = new MipPyramid(dye.width, dye.height);
+				tileChanges = new TileChanges(array, dye, gridWidth, gridHeight);
+			}
+			
+			//The visible region, measured in dye cells
+			double left = view.x * dye.width;
+			double top = view.y * dye.height;
+			double width = view.size * dye.width;
+			double height = view.size * dye.height;
+			
+			int level = pyramid.levelFor(Math.min(width / dimension.getWidth(), height / dimension.getHeight()));
+			
+			invalidateChangedTiles();
+			
+			List<MipPyramid.Tile> tiles = pyramid.visibleTiles(level, left, top, width, height);
+			List<MipPyramid.Tile> stale = new ArrayList<>();
+			
+			for(MipPyramid.Tile tile : tiles) {
+				if(!tile.isValid()) {
+					stale.add(tile);
+				}
+			}
+			
+			int colourMode = array.colourMode;
+			float tracerScale = tracerScale();
+			MipPyramid.CellColour colours = (x, y) -> pixel(colourMode, tracerScale, x, y);
+			
+			parallelRange(stale.size(), (start, end) -> {
+				for(int i = start; i < end; i++) {
+					pyramid.render(stale.get(i), colours);
+				}
 			});
+			
+			pyramid.draw(g, tiles, left, top, dimension.getWidth() / width, dimension.getHeight() / height);
 		}
 		
 		g.setFont(new Font("Dialog", Font.BOLD, 20));
 		g.setColor(Color.WHITE);
 		g.drawString(String.format("SPS: %.1f", simSpeed()), 20, 30);
 	}
-
+	
+	/** 
+	 * Invalidates the tiles of the pyramid over each tile of the simulation that has changed by more than the repaint
+	 * threshold since it was last drawn.
+	 */
+	private void invalidateChangedTiles() {
+		int colourMode = array.colourMode;
+		
+		//The tracer overlay changes every tick, so every tile is drawn again while it is shown
+		if(colourMode != drawnColourMode || tracerScale() != 0f) {
+			pyramid.invalidateAll();
+			drawnColourMode = colourMode;
+		}
+		
+		float threshold = repaintThreshold;
+		int tileSize = TileChanges.TILE_SIZE * dye.scale;
+		
+		for(int row = 0; row < tileChanges.tilesY; row++) {
+			for(int column = 0; column < tileChanges.tilesX; column++) {
+				int tile = column + row * tileChanges.tilesX;
+				
+				if(tileChanges.change(colourMode, tile) > threshold) {
+					pyramid.invalidate(column * tileSize, row * tileSize, (column + 1) * tileSize, (row + 1) * tileSize);
+					tileChanges.clear(tile);
+				}
+			}
+		}
+	}
+	
+	/** 
+	 * Sets how much a tile has to change before it is drawn again, measured as the change in a colour component from 0 to
+	 * 1. Higher values redraw less often, at the cost of showing outdated colours.
+	 */
+	public void setRepaintThreshold(double threshold) {
+		repaintThreshold = (float) threshold;
+	}
+	
+	/** 
+	 * Zooms the view by factor, keeping the point (u, v) of the window still. The point is given as a fraction of the size
+	 * of the window.
+	 */
+	public void zoom(double factor, double u, double v) {
+		View view = this.view;
+		
+		//Always show at least a few cells
+		double minimumSize = Math.min(1.0, 16.0 / Math.min(dye.width, dye.height));
+		double size = Math.min(1.0, Math.max(minimumSize, view.size / factor));
+		
+		this.view = new View(view.x + (view.size - size) * u, view.y + (view.size - size) * v, size);
+	}
+	
+	/** Moves the view by (du, dv), measured as a fraction of the size of the window */
+	public void pan(double du, double dv) {
+		View view = this.view;
+		this.view = new View(view.x - du * view.size, view.y - dv * view.size, view.size);
+	}
+	
+	public void resetView() {
+		view = new View(0, 0, 1);
+	}
+	
 	public void switchColourMode() {
-		array.colourMode = (array.colourMode + 1) % 3;
+		array.colourMode = (array.colourMode + 1) % (3 + dye.channels());
 	}
 }
@@ -0,0 +1,225 @@
+package brownshome.fluid2d;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Publishes frames into a memory mapped ring buffer file so that other processes on the same host can read them without
+ * copying and without ever blocking the simulation. All values are little endian.
+ * <p>
+ * The file starts with a 64 byte header: the magic number, the version, the format, the width, the height, the number
+ * of planes and the number of slots as ints, then the size of each slot and the number of the latest published frame
+ * as longs. Each slot starts with a 64 byte header holding the sequence number, the frame number, the tick and the
+ * publication time in nanoseconds as longs, followed by the payload.
+ * <p>
+ * The sequence number is a seqlock. It is odd while the slot is being written and even once the slot holds a complete
+ * frame. A reader reads the latest frame number, finds its slot, reads an even sequence number, copies the payload and
+ * then checks that the sequence number has not changed. If it has changed then the copy is discarded and retried.
+ */
+public final class FrameRingBuffer implements AutoCloseable {
+	public enum Format {
+		/** One packed ARGB int per pixel of the current colour mode, at the resolution of the dye grid */
+		ARGB,
+
+		/** The velocity components and pressure as floats at the velocity resolution, then each scalar at the dye resolution */
+		FIELDS
+	}
+
+	private static final int MAGIC = 0x42524C46; //FLRB
+	static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 64;
+	private static final int SLOT_HEADER_SIZE = 64;
+
+	private static final int LATEST_OFFSET = 40;
+	private static final int SEQUENCE_OFFSET = 0;
+	private static final int FRAME_OFFSET = 8;
+	private static final int TICK_OFFSET = 16;
+	private static final int TIME_OFFSET = 24;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	final Format format;
+	final int interval;
+	private final int slots;
+	private final long slotSize;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private long frame = 0;
+	private volatile boolean closed = false;
+
+	FrameRingBuffer(Path path, Format format, int slots, int interval, int width, int height, int planes, long payloadSize) throws IOException {
+		if(slots < 2) {
+			throw new IllegalArgumentException("At least two slots are needed: " + slots);
+		}
+
+		this.format = format;
+		this.interval = interval;
+		this.slots = slots;
+
+		//Keep every payload cache line aligned
+		slotSize = (SLOT_HEADER_SIZE + payloadSize + 63) / 64 * 64;
+		long size = HEADER_SIZE + slotSize * slots;
+
+		if(size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(String.format("A ring buffer of %d bytes is too large, use fewer slots", size));
+		}
+
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		buffer.putInt(0, MAGIC)
+			.putInt(4, VERSION)
+			.putInt(8, format.ordinal())
+			.putInt(12, width)
+			.putInt(16, height)
+			.putInt(20, planes)
+			.putInt(24, slots)
+			.putLong(32, slotSize);
+
+		LONGS.setRelease(buffer, LATEST_OFFSET, -1L);
+	}
+
+	/**
+	 * Starts writing the next frame, marking its slot as being written. The returned buffer covers the payload of the slot
+	 * and must be filled before {@link #publish(long)} is called.
+	 */
+	ByteBuffer begin() {
+		int slotStart = slotStart(frame);
+
+		long sequence = (long) LONGS.getOpaque(buffer, slotStart + SEQUENCE_OFFSET);
+		LONGS.setOpaque(buffer, slotStart + SEQUENCE_OFFSET, sequence + 1);
+		VarHandle.storeStoreFence();
+
+		ByteBuffer payload = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		payload.position(slotStart + SLOT_HEADER_SIZE).limit((int) (slotStart + slotSize));
+		return payload.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	IntBuffer beginARGB() {
+		return begin().asIntBuffer();
+	}
+
+	FloatBuffer beginFields() {
+		return begin().asFloatBuffer();
+	}
+
+	/** Marks the frame started by {@link #begin()} as complete and makes it the latest frame */
+	void publish(long tick) {
+		int slotStart = slotStart(frame);
+
+		buffer.putLong(slotStart + FRAME_OFFSET, frame)
+			.putLong(slotStart + TICK_OFFSET, tick)
+			.putLong(slotStart + TIME_OFFSET, System.nanoTime());
+
+		long sequence = (long) LONGS.getOpaque(buffer, slotStart + SEQUENCE_OFFSET);
+		LONGS.setRelease(buffer, slotStart + SEQUENCE_OFFSET, sequence + 1);
+		LONGS.setRelease(buffer, LATEST_OFFSET, frame);
+
+		frame++;
+	}
+
+	private int slotStart(long frame) {
+		return (int) (HEADER_SIZE + (frame % slots) * slotSize);
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/** Stops publishing frames. The file is left in place so that readers can still see the last frame. */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		channel.close();
+	}
+
+	/** Reads the latest frame from a ring buffer file written by another process */
+	public static final class Reader implements AutoCloseable {
+		private final FileChannel channel;
+		private final MappedByteBuffer buffer;
+		private final int slots;
+		private final long slotSize;
+
+		public Reader(Path path) throws IOException {
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			if(buffer.getInt(0) != MAGIC) {
+				throw new IOException("Not a frame ring buffer");
+			}
+
+			if(buffer.getInt(4) != VERSION) {
+				throw new IOException(String.format("Unsupported ring buffer version %d, expected %d", buffer.getInt(4), VERSION));
+			}
+
+			slots = buffer.getInt(24);
+			slotSize = buffer.getLong(32);
+		}
+
+		public int width() {
+			return buffer.getInt(12);
+		}
+
+		public int height() {
+			return buffer.getInt(16);
+		}
+
+		/**
+		 * Copies the payload of the latest frame into out, returning its frame number, or -1 if nothing has been published.
+		 * The copy is retried until it was not overwritten while it was being read.
+		 */
+		public long readLatest(ByteBuffer out) {
+			while(true) {
+				long frame = (long) LONGS.getAcquire(buffer, LATEST_OFFSET);
+
+				if(frame < 0) {
+					return -1;
+				}
+
+				int slotStart = (int) (HEADER_SIZE + (frame % slots) * slotSize);
+				long before = (long) LONGS.getAcquire(buffer, slotStart + SEQUENCE_OFFSET);
+
+				if((before & 1) != 0) {
+					Thread.onSpinWait();
+					continue;
+				}
+
+				ByteBuffer payload = buffer.duplicate();
+				payload.position(slotStart + SLOT_HEADER_SIZE).limit(slotStart + SLOT_HEADER_SIZE + Math.min(out.remaining(), (int) slotSize - SLOT_HEADER_SIZE));
+
+				int start = out.position();
+				out.put(payload);
+				VarHandle.loadLoadFence();
+
+				long after = (long) LONGS.getOpaque(buffer, slotStart + SEQUENCE_OFFSET);
+				long published = buffer.getLong(slotStart + FRAME_OFFSET);
+
+				if(before == after && published == frame) {
+					return frame;
+				}
+
+				out.position(start);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
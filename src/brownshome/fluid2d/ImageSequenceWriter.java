@@ -0,0 +1,228 @@
+package brownshome.fluid2d;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Writes rendered frames as a sequence of images, either as numbered files in a directory or one after another to a
+ * stream such as the standard output of the process, ready to be piped into an external encoder. The simulation thread
+ * only copies the pixels into one of a small pool of buffers, the encoding and writing is done by a bounded pool of
+ * worker threads. A buffer is not reused until its frame has been written, so if the workers or whatever is reading the
+ * stream fall behind then frames are dropped rather than stalling the simulation or queueing without limit.
+ * <p>
+ * Frames written to a stream are always written in order. PNG frames can be read by ffmpeg with {@code -f image2pipe}
+ * and RGB frames with {@code -f rawvideo -pix_fmt rgb24 -s WIDTHxHEIGHT}.
+ */
+public final class ImageSequenceWriter implements AutoCloseable {
+	public enum Format {
+		PNG("png"),
+
+		/** Three bytes per pixel, red, green and then blue, with the rows from top to bottom and no header */
+		RGB("rgb");
+
+		final String extension;
+
+		Format(String extension) {
+			this.extension = extension;
+		}
+	}
+
+	final int interval;
+	final int width;
+	final int height;
+	private final Format format;
+
+	/** The directory that frames are written to, or null if they are written to the stream */
+	private final Path directory;
+	private final OutputStream stream;
+
+	private final ThreadPoolExecutor encoders;
+	private final BlockingQueue<int[]> free;
+	private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+	private long frameNumber = 0;
+
+	private volatile boolean closed = false;
+	private volatile Throwable failure;
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	ImageSequenceWriter(Path directory, OutputStream stream, Format format, int width, int height, int interval, int workers) throws IOException {
+		if(interval < 1) {
+			throw new IllegalArgumentException("The interval must be at least 1: " + interval);
+		}
+
+		if(workers < 1) {
+			throw new IllegalArgumentException("At least one worker is needed: " + workers);
+		}
+
+		this.directory = directory;
+		this.stream = stream;
+		this.format = format;
+		this.width = width;
+		this.height = height;
+		this.interval = interval;
+
+		if(directory != null) {
+			Files.createDirectories(directory);
+		}
+
+		//Every queued task holds a buffer, so the queue can never fill up
+		int buffers = workers * 2;
+		free = new ArrayBlockingQueue<>(buffers);
+		for(int i = 0; i < buffers; i++) {
+			free.add(new int[width * height]);
+		}
+
+		encoders = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(buffers), runnable -> {
+			Thread thread = new Thread(runnable, "Image Encoder");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/** The number of frames that have been written */
+	public long framesWritten() {
+		return written.get();
+	}
+
+	/** The number of frames that were dropped because the workers could not keep up */
+	public long framesDropped() {
+		return dropped.get();
+	}
+
+	/** Gets a buffer to render the next frame into, or null if the frame should be skipped */
+	int[] acquire() {
+		if(closed) {
+			return null;
+		}
+
+		int[] pixels = free.poll();
+
+		if(pixels == null) {
+			dropped.incrementAndGet();
+		}
+
+		return pixels;
+	}
+
+	/** 
+	 * Queues a frame that has been rendered into a buffer from {@link #acquire()} to be encoded and written. The buffer
+	 * is returned to the pool once the frame has been written, or has failed to be.
+	 */
+	synchronized void submit(int[] pixels) {
+		if(closed) {
+			free.add(pixels);
+			return;
+		}
+
+		long number = frameNumber++;
+		CompletableFuture<byte[]> encoded = CompletableFuture.supplyAsync(() -> encode(pixels), encoders);
+
+		CompletableFuture<Void> frameWrite;
+		CompletableFuture<Void> write;
+		if(directory != null) {
+			frameWrite = encoded.thenAccept(bytes -> writeFile(number, bytes));
+			write = CompletableFuture.allOf(lastWrite, frameWrite);
+		} else {
+			frameWrite = lastWrite.thenCombine(encoded, (previous, bytes) -> {
+				writeStream(bytes);
+				return null;
+			});
+			write = frameWrite;
+		}
+
+		frameWrite.whenComplete((result, exception) -> free.add(pixels));
+
+		lastWrite = write.whenComplete((result, exception) -> {
+			if(exception != null && failure == null) {
+				failure = exception instanceof CompletionException ? exception.getCause() : exception;
+				closed = true;
+			}
+		});
+	}
+
+	private byte[] encode(int[] pixels) {
+		try {
+			if(format == Format.RGB) {
+				byte[] rgb = new byte[width * height * 3];
+
+				for(int i = 0; i < pixels.length; i++) {
+					int argb = pixels[i];
+					rgb[i * 3] = (byte) (argb >> 16);
+					rgb[i * 3 + 1] = (byte) (argb >> 8);
+					rgb[i * 3 + 2] = (byte) argb;
+				}
+
+				return rgb;
+			}
+
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			image.setRGB(0, 0, width, height, pixels, 0, width);
+
+			ByteArrayOutputStream png = new ByteArrayOutputStream();
+			ImageIO.write(image, "png", png);
+			return png.toByteArray();
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writeFile(long number, byte[] bytes) {
+		try {
+			Files.write(directory.resolve(String.format("frame%06d.%s", number, format.extension)), bytes);
+			written.incrementAndGet();
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writeStream(byte[] bytes) {
+		try {
+			stream.write(bytes);
+			written.incrementAndGet();
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Stops rendering, waiting for the frames that have already been rendered to be written */
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+
+		try {
+			lastWrite.join();
+		} catch(CompletionException e) {
+			//This is recorded in failure
+		}
+
+		encoders.shutdown();
+
+		if(stream != null) {
+			stream.flush();
+		}
+
+		if(failure instanceof IOException) {
+			throw (IOException) failure;
+		} else if(failure instanceof UncheckedIOException) {
+			throw ((UncheckedIOException) failure).getCause();
+		} else if(failure != null) {
+			throw new IOException(failure);
+		}
+	}
+}
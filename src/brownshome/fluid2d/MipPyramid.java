@@ -0,0 +1,212 @@
+package brownshome.fluid2d;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The levels of detail that a grid of cells is drawn at. Level n is the width and height of the grid divided by 2^n,
+ * rounded up, and each of its pixels is the average colour of every cell in its footprint, the block of 2^n by 2^n cells
+ * that it covers. This is the same as box filtering each level from the whole of the level below it, so coarse levels do
+ * not alias.
+ * <p>
+ * The levels are stored as tiles that are only created when they are drawn, and tiles that are no longer visible are
+ * released, so the memory used depends on the size of the window rather than the size of the grid. A tile is kept until
+ * it is invalidated, so the cells are only read again where they have changed.
+ */
+final class MipPyramid {
+	/** The width and height of a tile in pixels of its level */
+	static final int TILE_SIZE = 64;
+
+	@FunctionalInterface
+	interface CellColour {
+		/** The colour of the cell (x, y) as a packed RGB value */
+		int argb(int x, int y);
+	}
+
+	/** A tile of a level, covering the pixels [startX, endX) and [startY, endY) of that level */
+	static final class Tile {
+		final int level;
+		final int startX, startY, endX, endY;
+
+		private final BufferedImage image;
+		private final int[] pixels;
+		private boolean valid = false;
+
+		private Tile(int level, int startX, int startY, int endX, int endY) {
+			this.level = level;
+			this.startX = startX;
+			this.startY = startY;
+			this.endX = endX;
+			this.endY = endY;
+
+			image = new BufferedImage(endX - startX, endY - startY, BufferedImage.TYPE_INT_RGB);
+			pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		}
+
+		/** Returns true if the tile has been rendered and has not been invalidated since */
+		boolean isValid() {
+			return valid;
+		}
+	}
+
+	private final int width;
+	private final int height;
+	private final int levels;
+
+	/** The tiles that have been created, keyed by their level and position */
+	private final Map<Long, Tile> tiles = new HashMap<>();
+
+	MipPyramid(int width, int height) {
+		this.width = width;
+		this.height = height;
+
+		int levels = 1;
+		while(width(levels - 1) > 1 || height(levels - 1) > 1) {
+			levels++;
+		}
+
+		this.levels = levels;
+	}
+
+	int levels() {
+		return levels;
+	}
+
+	int width(int level) {
+		return (int) ((width + (1L << level) - 1) >> level);
+	}
+
+	int height(int level) {
+		return (int) ((height + (1L << level) - 1) >> level);
+	}
+
+	/** The coarsest level that still has at least one pixel for each pixel on the screen */
+	int levelFor(double cellsPerPixel) {
+		int level = 0;
+
+		while(level + 1 < levels && cellsPerPixel >= 2.0) {
+			cellsPerPixel /= 2.0;
+			level++;
+		}
+
+		return level;
+	}
+
+	/**
+	 * Returns the tiles of level that overlap the cells [left, left + regionWidth) and [top, top + regionHeight), creating
+	 * any that are missing. Every other tile is released.
+	 */
+	List<Tile> visibleTiles(int level, double left, double top, double regionWidth, double regionHeight) {
+		double block = 1L << level;
+
+		int startColumn = (int) Math.max(0, left / block) / TILE_SIZE;
+		int endColumn = ((int) Math.min(width(level), Math.ceil((left + regionWidth) / block)) - 1) / TILE_SIZE + 1;
+		int startRow = (int) Math.max(0, top / block) / TILE_SIZE;
+		int endRow = ((int) Math.min(height(level), Math.ceil((top + regionHeight) / block)) - 1) / TILE_SIZE + 1;
+
+		Map<Long, Tile> visible = new HashMap<>();
+
+		for(int row = startRow; row < endRow; row++) {
+			for(int column = startColumn; column < endColumn; column++) {
+				long key = (long) level << 56 | (long) row << 28 | column;
+				Tile tile = tiles.get(key);
+
+				if(tile == null) {
+					int startX = column * TILE_SIZE;
+					int startY = row * TILE_SIZE;
+					tile = new Tile(level, startX, startY, Math.min(width(level), startX + TILE_SIZE), Math.min(height(level), startY + TILE_SIZE));
+				}
+
+				visible.put(key, tile);
+			}
+		}
+
+		tiles.clear();
+		tiles.putAll(visible);
+
+		return new ArrayList<>(visible.values());
+	}
+
+	/** Marks every tile that covers any of the cells [startX, endX) and [startY, endY) as needing to be rendered again */
+	void invalidate(int startX, int startY, int endX, int endY) {
+		for(Tile tile : tiles.values()) {
+			int level = tile.level;
+
+			if(tile.valid && (long) tile.startX << level < endX && (long) tile.endX << level > startX
+					&& (long) tile.startY << level < endY && (long) tile.endY << level > startY) {
+				tile.valid = false;
+			}
+		}
+	}
+
+	void invalidateAll() {
+		for(Tile tile : tiles.values()) {
+			tile.valid = false;
+		}
+	}
+
+	/** Sets each pixel of tile to the average of the cells in its footprint. Different tiles can be rendered at once. */
+	void render(Tile tile, CellColour colours) {
+		int level = tile.level;
+		int tileWidth = tile.endX - tile.startX;
+
+		for(int y = tile.startY; y < tile.endY; y++) {
+			int startCellY = y << level;
+			int endCellY = (int) Math.min(height, (long) (y + 1) << level);
+
+			for(int x = tile.startX; x < tile.endX; x++) {
+				int startCellX = x << level;
+				int endCellX = (int) Math.min(width, (long) (x + 1) << level);
+
+				long red = 0, green = 0, blue = 0;
+
+				for(int cellY = startCellY; cellY < endCellY; cellY++) {
+					for(int cellX = startCellX; cellX < endCellX; cellX++) {
+						int argb = colours.argb(cellX, cellY);
+						red += argb >> 16 & 0xFF;
+						green += argb >> 8 & 0xFF;
+						blue += argb & 0xFF;
+					}
+				}
+
+				long cells = (long) (endCellX - startCellX) * (endCellY - startCellY);
+				long half = cells >> 1;
+
+				tile.pixels[x - tile.startX + (y - tile.startY) * tileWidth] = 0xFF000000
+						| (int) ((red + half) / cells) << 16
+						| (int) ((green + half) / cells) << 8
+						| (int) ((blue + half) / cells);
+			}
+		}
+
+		tile.valid = true;
+	}
+
+	/**
+	 * Draws tiles so that the cell (left, top) is at the corner of the window, with pixelsPerCellX and pixelsPerCellY
+	 * pixels of the window for each cell.
+	 */
+	void draw(Graphics g, List<Tile> tiles, double left, double top, double pixelsPerCellX, double pixelsPerCellY) {
+		for(Tile tile : tiles) {
+			int level = tile.level;
+
+			//The last pixel of a level can cover fewer cells than the others
+			double startX = (double) ((long) tile.startX << level);
+			double startY = (double) ((long) tile.startY << level);
+			double endX = Math.min(width, (long) tile.endX << level);
+			double endY = Math.min(height, (long) tile.endY << level);
+
+			g.drawImage(tile.image,
+					(int) Math.round((startX - left) * pixelsPerCellX),
+					(int) Math.round((startY - top) * pixelsPerCellY),
+					(int) Math.round((endX - left) * pixelsPerCellX),
+					(int) Math.round((endY - top) * pixelsPerCellY),
+					0, 0, tile.endX - tile.startX, tile.endY - tile.startY, null);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package brownshome.fluid2d;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A NumPy .npy file holding a two dimensional array of little endian doubles with the shape (height, width). The array is
+ * memory mapped so that the simulation can write into it directly, and other processes can map the same file to read it
+ * in place. Readers may see a partly updated array, as there is no synchronisation between processes.
+ */
+public final class NpyFile implements AutoCloseable {
+	/** The header is padded so that the array starts on a boundary of this many bytes */
+	private static final int HEADER_ALIGNMENT = 64;
+
+	/** The most rows that are mapped at once, each band is kept under 1 GiB */
+	private static final long MAX_MAPPING = 1L << 30;
+
+	final int width;
+	final int height;
+
+	private final FileChannel channel;
+	private final DoubleBuffer[] bands;
+	private final int rowsPerBand;
+	private volatile boolean closed = false;
+
+	NpyFile(Path path, int width, int height) throws IOException {
+		this.width = width;
+		this.height = height;
+
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		ByteBuffer header = header(width, height);
+		int dataStart = header.remaining();
+		while(header.hasRemaining()) {
+			channel.write(header);
+		}
+
+		rowsPerBand = (int) Math.max(1, MAX_MAPPING / ((long) width * Double.BYTES));
+		bands = new DoubleBuffer[(height - 1) / rowsPerBand + 1];
+
+		for(int band = 0; band < bands.length; band++) {
+			long rows = Math.min(rowsPerBand, height - (long) band * rowsPerBand);
+			long start = dataStart + (long) band * rowsPerBand * width * Double.BYTES;
+
+			bands[band] = channel.map(FileChannel.MapMode.READ_WRITE, start, rows * width * Double.BYTES)
+					.order(ByteOrder.LITTLE_ENDIAN)
+					.asDoubleBuffer();
+		}
+	}
+
+	/** Creates the version 1.0 header, padded with spaces and terminated by a newline */
+	static ByteBuffer header(int width, int height) {
+		String dictionary = String.format("{'descr': '<f8', 'fortran_order': False, 'shape': (%d, %d), }", height, width);
+
+		int unpadded = 6 + 2 + 2 + dictionary.length() + 1;
+		int padding = (HEADER_ALIGNMENT - unpadded % HEADER_ALIGNMENT) % HEADER_ALIGNMENT;
+
+		StringBuilder builder = new StringBuilder(dictionary);
+		for(int i = 0; i < padding; i++) {
+			builder.append(' ');
+		}
+
+		builder.append('\n');
+
+		byte[] text = builder.toString().getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer header = ByteBuffer.allocate(10 + text.length).order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte) 0x93).put("NUMPY".getBytes(StandardCharsets.US_ASCII))
+			.put((byte) 1).put((byte) 0)
+			.putShort((short) text.length)
+			.put(text);
+
+		header.flip();
+		return header;
+	}
+
+	/** The mapped buffer holding row y, the row starts at {@link #rowOffset(int)} */
+	DoubleBuffer row(int y) {
+		return bands[y / rowsPerBand];
+	}
+
+	int rowOffset(int y) {
+		return (y % rowsPerBand) * width;
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/** Stops any further updates and closes the file, the data that has already been written stays in the file */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		channel.close();
+	}
+}
@@ -0,0 +1,95 @@
+package brownshome.fluid2d;
+
+import static org.lwjgl.system.MemoryUtil.memCopy;
+import static org.lwjgl.system.MemoryUtil.memDoubleBuffer;
+import static org.lwjgl.system.MemoryUtil.memGetDouble;
+import static org.lwjgl.system.MemoryUtil.memPutDouble;
+import static org.lwjgl.system.MemoryUtil.memSet;
+import static org.lwjgl.system.MemoryUtil.nmemAlignedAlloc;
+import static org.lwjgl.system.MemoryUtil.nmemAlignedFree;
+
+import java.lang.ref.Cleaner;
+import java.nio.DoubleBuffer;
+
+/**
+ * Stores a grid in a single block of native memory. The bands are laid out one after the other, so the block holds the
+ * grid in row order and can be passed to native code as it is. The memory is freed by {@link #free()}, or when the
+ * storage is garbage collected.
+ * <p>
+ * New storage is not written to, so that no page is touched until a row is cleared. The operating system places each
+ * page on the NUMA node of the thread that touches it first.
+ */
+final class OffHeapCellStorage extends CellStorage {
+	/** The block starts on a page boundary */
+	private static final long ALIGNMENT = 4096;
+
+	private static final Cleaner CLEANER = Cleaner.create();
+
+	private final long address;
+	private final long bandStride;
+	private final Cleaner.Cleanable cleanable;
+
+	OffHeapCellStorage(int width, int height, int cellSize) {
+		super(width, height, cellSize, MAX_ARRAY_SIZE);
+
+		bandStride = (long) bandSize(0) * Double.BYTES;
+
+		long address = nmemAlignedAlloc(ALIGNMENT, byteSize());
+		if(address == 0) {
+			throw new OutOfMemoryError(String.format("Unable to allocate %d bytes of native memory", byteSize()));
+		}
+
+		this.address = address;
+		cleanable = CLEANER.register(this, () -> nmemAlignedFree(address));
+	}
+
+	/** The address of the first value of the grid */
+	long address() {
+		return address;
+	}
+
+	/** The size of the grid in bytes */
+	long byteSize() {
+		return size() * Double.BYTES;
+	}
+
+	private long address(long index) {
+		return address + (index >>> 32) * bandStride + ((index & 0xFFFFFFFFL) << 3);
+	}
+
+	@Override
+	double get(long index) {
+		return memGetDouble(address(index));
+	}
+
+	@Override
+	void set(long index, double value) {
+		memPutDouble(address(index), value);
+	}
+
+	@Override
+	void clear(int startRow, int endRow) {
+		long rowBytes = (long) width * cellSize * Double.BYTES;
+
+		for(int y = startRow; y < endRow; y++) {
+			memSet(address(index(0, y)), 0, rowBytes);
+		}
+	}
+
+	@Override
+	DoubleBuffer band(int band) {
+		return memDoubleBuffer(address + band * bandStride, bandSize(band));
+	}
+
+	@Override
+	CellStorage duplicate() {
+		OffHeapCellStorage copy = new OffHeapCellStorage(width, height, cellSize);
+		memCopy(address, copy.address, byteSize());
+		return copy;
+	}
+
+	@Override
+	void free() {
+		cleanable.clean();
+	}
+}
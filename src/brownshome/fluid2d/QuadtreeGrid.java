@@ -0,0 +1,405 @@
+package brownshome.fluid2d;
+
+import static brownshome.fluid2d.FluidCellArray.DATA_SIZE;
+import static brownshome.fluid2d.FluidCellArray.PRESSURE_OFFSET;
+import static brownshome.fluid2d.FluidCellArray.TMP_PRESSURE_OFFSET;
+import static brownshome.fluid2d.FluidCellArray.TMP_VELOCITY_OFFSET;
+import static brownshome.fluid2d.FluidCellArray.VELOCITY_OFFSET;
+
+import java.util.Arrays;
+
+/**
+ * A grid of square cells of different sizes, covering the same domain as a {@link FluidCellArray} of width by height
+ * cells. The cells are the leaves of a quadtree, and positions are measured in cells of the finest level, so that the
+ * leaf covering the finest cells [x, x + h) by [y, y + h) has its centre at (x + (h - 1) / 2, y + (h - 1) / 2).
+ * <p>
+ * The operators are those of FluidCellArray with a cell spacing of h. The neighbour of a leaf on each side is the average
+ * of the leaves a quarter of a cell either side of the point one cell away, which is a single leaf if it is the same size
+ * or larger, and the two adjacent leaves if they are smaller. When every leaf is on the finest level this gives exactly
+ * the same results as FluidCellArray.
+ */
+final class QuadtreeGrid {
+	/** Decides whether the square region [x, x + size) by [y, y + size) is split into four */
+	@FunctionalInterface
+	interface Refinement {
+		boolean split(int x, int y, int size);
+	}
+
+	/** The neighbours of each leaf, in pairs for the right, left, top and bottom sides */
+	private static final int RIGHT = 0, LEFT = 2, TOP = 4, BOTTOM = 6;
+
+	final int width;
+	final int height;
+	final int rootSize;
+	private final int rootsX;
+	private final int rootsY;
+
+	/** For each node, the first of its four children if it has been split, or the complement of its leaf */
+	private int[] nodes;
+	private int[] nodeX;
+	private int[] nodeY;
+	private int[] nodeSize;
+	private int nodeCount = 0;
+
+	private int leafCount = 0;
+	private int[] leafX;
+	private int[] leafY;
+	private int[] leafSize;
+	private boolean[] solid;
+	private double[] data;
+	private int[] neighbours;
+
+	/**
+	 * Builds the grid, splitting each region while refinement asks for it. Leaves are then split further until no leaf
+	 * is more than twice the size of the leaves next to it, as larger jumps in size make the solver unstable.
+	 */
+	QuadtreeGrid(int width, int height, int rootSize, Refinement refinement) {
+		if(Integer.bitCount(rootSize) != 1) {
+			throw new IllegalArgumentException("The root size must be a power of two: " + rootSize);
+		}
+
+		this.width = width;
+		this.height = height;
+		this.rootSize = rootSize;
+
+		rootsX = (width - 1) / rootSize + 1;
+		rootsY = (height - 1) / rootSize + 1;
+
+		nodeCount = rootsX * rootsY;
+		nodes = new int[nodeCount * 4];
+		nodeX = new int[nodeCount * 4];
+		nodeY = new int[nodeCount * 4];
+		nodeSize = new int[nodeCount * 4];
+
+		for(int y = 0; y < rootsY; y++) {
+			for(int x = 0; x < rootsX; x++) {
+				int root = x + y * rootsX;
+				nodeX[root] = x * rootSize;
+				nodeY[root] = y * rootSize;
+				nodeSize[root] = rootSize;
+				nodes[root] = ~0;
+
+				build(root, refinement);
+			}
+		}
+
+		while(balance()) { }
+
+		leafX = new int[nodeCount];
+		leafY = new int[nodeCount];
+		leafSize = new int[nodeCount];
+
+		for(int y = 0; y < rootsY; y++) {
+			for(int x = 0; x < rootsX; x++) {
+				number(x + y * rootsX);
+			}
+		}
+
+		data = new double[leafCount * DATA_SIZE];
+		solid = new boolean[leafCount];
+		neighbours = new int[leafCount * 8];
+
+		for(int leaf = 0; leaf < leafCount; leaf++) {
+			solid[leaf] = FluidCellArray.isSolid(leafX[leaf] + leafSize[leaf] / 2, leafY[leaf] + leafSize[leaf] / 2, width, height);
+
+			//The same starting flow as FluidCellArray
+			data[leaf * DATA_SIZE + VELOCITY_OFFSET] = -10.0;
+
+			double h = leafSize[leaf];
+			double cx = centreX(leaf);
+			double cy = centreY(leaf);
+			int base = leaf * 8;
+
+			neighbours[base + RIGHT] = locate(cx + h, cy - h / 4);
+			neighbours[base + RIGHT + 1] = locate(cx + h, cy + h / 4);
+			neighbours[base + LEFT] = locate(cx - h, cy - h / 4);
+			neighbours[base + LEFT + 1] = locate(cx - h, cy + h / 4);
+			neighbours[base + TOP] = locate(cx - h / 4, cy + h);
+			neighbours[base + TOP + 1] = locate(cx + h / 4, cy + h);
+			neighbours[base + BOTTOM] = locate(cx - h / 4, cy - h);
+			neighbours[base + BOTTOM + 1] = locate(cx + h / 4, cy - h);
+		}
+	}
+
+	private void build(int node, Refinement refinement) {
+		int x = nodeX[node];
+		int y = nodeY[node];
+		int size = nodeSize[node];
+
+		//Regions outside of the grid are never reached, as positions are clamped to the grid
+		if(x >= width || y >= height) {
+			return;
+		}
+
+		boolean inside = x + size <= width && y + size <= height;
+
+		if(size > 1 && (!inside || refinement.split(x, y, size))) {
+			int first = split(node);
+
+			for(int child = first; child < first + 4; child++) {
+				build(child, refinement);
+			}
+		}
+	}
+
+	/** Splits a node into four unsplit children, returning the first child */
+	private int split(int node) {
+		int first = nodeCount;
+		nodeCount += 4;
+
+		if(nodeCount > nodes.length) {
+			nodes = Arrays.copyOf(nodes, nodes.length * 2);
+			nodeX = Arrays.copyOf(nodeX, nodes.length);
+			nodeY = Arrays.copyOf(nodeY, nodes.length);
+			nodeSize = Arrays.copyOf(nodeSize, nodes.length);
+		}
+
+		int half = nodeSize[node] / 2;
+		for(int child = 0; child < 4; child++) {
+			nodes[first + child] = ~0;
+			nodeX[first + child] = nodeX[node] + (child & 1) * half;
+			nodeY[first + child] = nodeY[node] + (child >> 1) * half;
+			nodeSize[first + child] = half;
+		}
+
+		nodes[node] = first;
+		return first;
+	}
+
+	/** Splits every unsplit node that is more than twice the size of an unsplit node next to it, returning true if any were split */
+	private boolean balance() {
+		boolean split = false;
+
+		//New nodes are checked in the next pass
+		int count = nodeCount;
+		for(int node = 0; node < count; node++) {
+			if(nodes[node] >= 0) {
+				continue;
+			}
+
+			int x = nodeX[node];
+			int y = nodeY[node];
+			int size = nodeSize[node];
+
+			if(x >= width || y >= height) {
+				continue;
+			}
+
+			split |= splitLarger(x + size, y + size / 2, size)
+					| splitLarger(x - 1, y + size / 2, size)
+					| splitLarger(x + size / 2, y + size, size)
+					| splitLarger(x + size / 2, y - 1, size);
+		}
+
+		return split;
+	}
+
+	/** Splits the unsplit node holding the cell (x, y) if it is more than twice size */
+	private boolean splitLarger(int x, int y, int size) {
+		if(x < 0 || y < 0 || x >= width || y >= height) {
+			return false;
+		}
+
+		int node = find(x, y);
+		if(nodeSize[node] > size * 2) {
+			split(node);
+			return true;
+		}
+
+		return false;
+	}
+
+	/** Gives each unsplit node inside the grid a leaf */
+	private void number(int node) {
+		if(nodes[node] >= 0) {
+			for(int child = nodes[node]; child < nodes[node] + 4; child++) {
+				number(child);
+			}
+		} else if(nodeX[node] < width && nodeY[node] < height) {
+			leafX[leafCount] = nodeX[node];
+			leafY[leafCount] = nodeY[node];
+			leafSize[leafCount] = nodeSize[node];
+			nodes[node] = ~leafCount++;
+		}
+	}
+
+	int leafCount() {
+		return leafCount;
+	}
+
+	double centreX(int leaf) {
+		return leafX[leaf] + (leafSize[leaf] - 1) * 0.5;
+	}
+
+	double centreY(int leaf) {
+		return leafY[leaf] + (leafSize[leaf] - 1) * 0.5;
+	}
+
+	void setValue(int leaf, int offset, double value) {
+		data[leaf * DATA_SIZE + offset] = value;
+	}
+
+	/** The leaf holding the point (x, y), clamping to the edge of the grid */
+	int locate(double x, double y) {
+		int cellX = Math.min(width - 1, Math.max(0, (int) Math.floor(x + 0.5)));
+		int cellY = Math.min(height - 1, Math.max(0, (int) Math.floor(y + 0.5)));
+
+		return ~nodes[find(cellX, cellY)];
+	}
+
+	/** The unsplit node holding the cell (x, y) */
+	private int find(int x, int y) {
+		int node = x / rootSize + y / rootSize * rootsX;
+
+		while(nodes[node] >= 0) {
+			int half = nodeSize[node] / 2;
+			int right = x >= nodeX[node] + half ? 1 : 0;
+			int up = y >= nodeY[node] + half ? 1 : 0;
+
+			node = nodes[node] + right + up * 2;
+		}
+
+		return node;
+	}
+
+	/**
+	 * Finds a property at the point (x, y). This interpolates between the centres of the leaf holding the point and the
+	 * leaves one cell of that size away, which is the same as the bilinear sampling of FluidCellArray on a uniform grid.
+	 */
+	double sample(double x, double y, int offset) {
+		int leaf = locate(x, y);
+		double h = leafSize[leaf];
+		double cx = centreX(leaf);
+		double cy = centreY(leaf);
+
+		double gridX = (x - cx) / h;
+		double gridY = (y - cy) / h;
+		double floorX = Math.floor(gridX);
+		double floorY = Math.floor(gridY);
+		double lerpX = gridX - floorX;
+		double lerpY = gridY - floorY;
+
+		double x0 = cx + floorX * h;
+		double y0 = cy + floorY * h;
+
+		double p00 = data[locate(x0, y0) * DATA_SIZE + offset];
+		double p10 = data[locate(x0 + h, y0) * DATA_SIZE + offset];
+		double p01 = data[locate(x0, y0 + h) * DATA_SIZE + offset];
+		double p11 = data[locate(x0 + h, y0 + h) * DATA_SIZE + offset];
+
+		double w11 = lerpX * lerpY;
+		double w10 = lerpX - w11;
+		double w01 = lerpY - w11;
+		double w00 = 1.0 - lerpX - w01;
+
+		return w00 * p00 + w10 * p10 + w01 * p01 + w11 * p11;
+	}
+
+	private double neighbour(int leaf, int side, int offset) {
+		int base = leaf * 8 + side;
+		return (data[neighbours[base] * DATA_SIZE + offset] + data[neighbours[base + 1] * DATA_SIZE + offset]) * 0.5;
+	}
+
+	void advection(int leaf, double timestep) {
+		int index = leaf * DATA_SIZE;
+
+		double sampleX = centreX(leaf) - data[index + VELOCITY_OFFSET] * timestep;
+		double sampleY = centreY(leaf) - data[index + VELOCITY_OFFSET + 1] * timestep;
+
+		data[index + TMP_VELOCITY_OFFSET] = sample(sampleX, sampleY, VELOCITY_OFFSET);
+		data[index + TMP_VELOCITY_OFFSET + 1] = sample(sampleX, sampleY, VELOCITY_OFFSET + 1);
+	}
+
+	void performDiffusionIteration(int leaf, double viscocity, double timestep) {
+		int index = leaf * DATA_SIZE;
+		double h = leafSize[leaf];
+
+		double alpha = h * h / viscocity / timestep;
+		double beta = 4 + alpha;
+
+		for(int component = 0; component < 2; component++) {
+			int offset = VELOCITY_OFFSET + component;
+
+			double v = neighbour(leaf, RIGHT, offset) + neighbour(leaf, LEFT, offset)
+					+ neighbour(leaf, TOP, offset) + neighbour(leaf, BOTTOM, offset) + data[index + offset] * alpha;
+
+			data[index + TMP_VELOCITY_OFFSET + component] = v / beta;
+		}
+	}
+
+	/** The divergence multiplied by the area of the leaf, as used by the pressure equation */
+	private double scaledDivergence(int leaf) {
+		double h = leafSize[leaf];
+
+		return ((neighbour(leaf, RIGHT, VELOCITY_OFFSET) - neighbour(leaf, LEFT, VELOCITY_OFFSET))
+				+ (neighbour(leaf, TOP, VELOCITY_OFFSET + 1) - neighbour(leaf, BOTTOM, VELOCITY_OFFSET + 1))) * 0.5 * h;
+	}
+
+	void calculatePressure(int leaf) {
+		double pressure = neighbour(leaf, RIGHT, PRESSURE_OFFSET) + neighbour(leaf, LEFT, PRESSURE_OFFSET)
+				+ neighbour(leaf, TOP, PRESSURE_OFFSET) + neighbour(leaf, BOTTOM, PRESSURE_OFFSET) - scaledDivergence(leaf);
+
+		data[leaf * DATA_SIZE + TMP_PRESSURE_OFFSET] = pressure * 0.25;
+	}
+
+	void subtractPressureGradient(int leaf) {
+		int index = leaf * DATA_SIZE;
+		double h = leafSize[leaf];
+
+		double pressureDx = (neighbour(leaf, RIGHT, PRESSURE_OFFSET) - neighbour(leaf, LEFT, PRESSURE_OFFSET)) / h;
+		double pressureDy = (neighbour(leaf, TOP, PRESSURE_OFFSET) - neighbour(leaf, BOTTOM, PRESSURE_OFFSET)) / h;
+
+		data[index + TMP_VELOCITY_OFFSET] = data[index + VELOCITY_OFFSET] - pressureDx;
+		data[index + TMP_VELOCITY_OFFSET + 1] = data[index + VELOCITY_OFFSET + 1] - pressureDy;
+	}
+
+	/** The same forcing as {@link FluidCellArray#applyForce(int, int)}, applied to the cell at the centre of the leaf */
+	void applyForce(int leaf) {
+		int index = leaf * DATA_SIZE;
+		int x = leafX[leaf] + leafSize[leaf] / 2;
+		int y = leafY[leaf] + leafSize[leaf] / 2;
+
+		data[index + TMP_VELOCITY_OFFSET] = data[index + VELOCITY_OFFSET] + FluidCellArray.force(x, y, width, height);
+		data[index + TMP_VELOCITY_OFFSET + 1] = data[index + VELOCITY_OFFSET + 1];
+	}
+
+	void pushVelocityChange(int leaf) {
+		int index = leaf * DATA_SIZE;
+
+		if(solid[leaf]) {
+			data[index + VELOCITY_OFFSET] = 0.0;
+			data[index + VELOCITY_OFFSET + 1] = 0.0;
+		} else {
+			data[index + VELOCITY_OFFSET] = data[index + TMP_VELOCITY_OFFSET];
+			data[index + VELOCITY_OFFSET + 1] = data[index + TMP_VELOCITY_OFFSET + 1];
+		}
+	}
+
+	void pushPressureChange(int leaf) {
+		int index = leaf * DATA_SIZE;
+		data[index + PRESSURE_OFFSET] = data[index + TMP_PRESSURE_OFFSET];
+	}
+
+	double velocitySq(int leaf) {
+		int index = leaf * DATA_SIZE;
+		double vx = data[index + VELOCITY_OFFSET];
+		double vy = data[index + VELOCITY_OFFSET + 1];
+
+		return vx * vx + vy * vy;
+	}
+
+	/** The colour of a leaf in the velocity or pressure colour modes */
+	int getARGB(int leaf, int colourMode) {
+		if(solid[leaf]) {
+			return ColourMap.BLACK;
+		}
+
+		int index = leaf * DATA_SIZE;
+
+		if(colourMode == 1) {
+			return ColourMap.velocity(data[index + VELOCITY_OFFSET], data[index + VELOCITY_OFFSET + 1]);
+		} else {
+			return ColourMap.pressure(data[index + PRESSURE_OFFSET]);
+		}
+	}
+}
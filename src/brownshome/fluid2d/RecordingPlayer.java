@@ -0,0 +1,518 @@
+package brownshome.fluid2d;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Plays back a file written by {@link FieldRecorder}. The file is memory mapped and indexed when it is opened, and frames
+ * are decoded on a background thread when they are first needed. A small cache of decoded frames is kept so that
+ * scrubbing back and forth over the same region does not decode the same frames again.
+ */
+public final class RecordingPlayer implements AutoCloseable {
+	/** The largest region of the file that is mapped at once, frames never span two regions */
+	private static final long MAX_MAPPING = 1L << 30;
+
+	/** The number of decoded frames that are kept */
+	private static final int CACHE_SIZE = 16;
+
+	/** A decoded frame, the values are stored as their 16 bit codes and converted when they are read */
+	static final class Frame {
+		final int index;
+		final long tick;
+		final short[] codes;
+		final float[] offsets;
+		final float[] scales;
+
+		Frame(int index, long tick, short[] codes, float[] offsets, float[] scales) {
+			this.index = index;
+			this.tick = tick;
+			this.codes = codes;
+			this.offsets = offsets;
+			this.scales = scales;
+		}
+	}
+
+	private final FileChannel channel;
+	private final FieldRecorder.Quantization quantization;
+	private final FieldRecorder.Compression compression;
+
+	private final String[] planeNames;
+	private final int[] planeWidths;
+	private final int[] planeHeights;
+	private final int[] planeStarts;
+	private final int totalValues;
+
+	private final List<MappedByteBuffer> mappings = new ArrayList<>();
+	private int frameCount;
+	private int[] frameMapping = new int[64];
+	private int[] frameOffset = new int[64];
+
+	private final Map<Integer, Frame> cache = new LinkedHashMap<Integer, Frame>(CACHE_SIZE, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Frame> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private final ExecutorService decoder = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Recording Decoder");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/** Only used on the decoder thread */
+	private final Inflater inflater = new Inflater();
+	private ByteBuffer raw;
+
+	private volatile int colourMode = 0;
+	private volatile int position = 0;
+	private volatile int speed = 1;
+	private volatile boolean paused = false;
+	private volatile Frame displayed;
+	private int requested = -1;
+
+	/** The pyramid of the plane that was last drawn, and what is in it, these are only used by paint */
+	private MipPyramid pyramid;
+	private int pyramidPlane = -1;
+	private Frame drawnFrame;
+	private int drawnMode = -1;
+
+	public RecordingPlayer(Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+
+		ByteBuffer header = read(0, Integer.BYTES * 5);
+		if(header.getInt() != FieldRecorder.MAGIC) {
+			throw new IOException("Not a recording file");
+		}
+
+		int version = header.getInt();
+		if(version != FieldRecorder.VERSION) {
+			throw new IOException(String.format("Unsupported recording version %d, expected %d", version, FieldRecorder.VERSION));
+		}
+
+		int quantization = header.getInt();
+		if(quantization < 0 || quantization >= FieldRecorder.Quantization.values().length) {
+			throw new IOException("Unknown quantization " + quantization);
+		}
+
+		int compression = header.getInt();
+		if(compression < 0 || compression >= FieldRecorder.Compression.values().length) {
+			throw new IOException("Unknown compression " + compression);
+		}
+
+		this.quantization = FieldRecorder.Quantization.values()[quantization];
+		this.compression = FieldRecorder.Compression.values()[compression];
+
+		int planes = header.getInt();
+		planeNames = new String[planes];
+		planeWidths = new int[planes];
+		planeHeights = new int[planes];
+		planeStarts = new int[planes];
+
+		long position = header.capacity();
+		int total = 0;
+		for(int plane = 0; plane < planes; plane++) {
+			ByteBuffer description = read(position, Integer.BYTES * 3);
+			planeWidths[plane] = description.getInt();
+			planeHeights[plane] = description.getInt();
+
+			int nameLength = description.getInt();
+			planeNames[plane] = StandardCharsets.UTF_8.decode(read(position + Integer.BYTES * 3, nameLength)).toString();
+			position += Integer.BYTES * 3 + nameLength;
+
+			planeStarts[plane] = total;
+			total += planeWidths[plane] * planeHeights[plane];
+		}
+
+		totalValues = total;
+		raw = ByteBuffer.allocate(totalValues * Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+		index(position);
+	}
+
+	/** Scans the frame headers, mapping the file in regions that each hold a whole number of frames */
+	private void index(long position) throws IOException {
+		long size = channel.size();
+		int frameHeaderSize = frameHeaderSize();
+
+		long regionStart = position;
+		List<Long> regionFrames = new ArrayList<>();
+
+		while(position + frameHeaderSize <= size) {
+			ByteBuffer header = read(position, frameHeaderSize);
+
+			if(header.getInt(0) != FieldRecorder.FRAME_MAGIC) {
+				break;
+			}
+
+			long end = position + frameHeaderSize + header.getInt(Integer.BYTES * 3 + Long.BYTES);
+
+			//A partly written frame at the end of the file is ignored
+			if(end > size) {
+				break;
+			}
+
+			if(end - regionStart > MAX_MAPPING && !regionFrames.isEmpty()) {
+				mapRegion(regionStart, position, regionFrames);
+				regionStart = position;
+			}
+
+			regionFrames.add(position);
+			position = end;
+		}
+
+		if(!regionFrames.isEmpty()) {
+			mapRegion(regionStart, position, regionFrames);
+		}
+	}
+
+	private void mapRegion(long start, long end, List<Long> frames) throws IOException {
+		MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		mapping.order(ByteOrder.LITTLE_ENDIAN);
+		mappings.add(mapping);
+
+		for(long frame : frames) {
+			if(frameCount == frameMapping.length) {
+				frameMapping = Arrays.copyOf(frameMapping, frameCount * 2);
+				frameOffset = Arrays.copyOf(frameOffset, frameCount * 2);
+			}
+
+			frameMapping[frameCount] = mappings.size() - 1;
+			frameOffset[frameCount] = (int) (frame - start);
+			frameCount++;
+		}
+
+		frames.clear();
+	}
+
+	private int frameHeaderSize() {
+		return Integer.BYTES * 4 + Long.BYTES + planeWidths.length * Float.BYTES * 2;
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) == -1) {
+				throw new IOException("Unexpected end of recording");
+			}
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+	public int frameCount() {
+		return frameCount;
+	}
+
+	public int planes() {
+		return planeNames.length;
+	}
+
+	public String planeName(int plane) {
+		return planeNames[plane];
+	}
+
+	public int planeWidth(int plane) {
+		return planeWidths[plane];
+	}
+
+	public int planeHeight(int plane) {
+		return planeHeights[plane];
+	}
+
+	/** Returns the plane with the given name, or -1 if there is no such plane */
+	public int plane(String name) {
+		return Arrays.asList(planeNames).indexOf(name);
+	}
+
+	/** Reads a value from a decoded frame */
+	float value(Frame frame, int plane, int x, int y) {
+		short code = frame.codes[planeStarts[plane] + x + y * planeWidths[plane]];
+		return FieldRecorder.dequantize(quantization, code, frame.offsets[plane], frame.scales[plane]);
+	}
+
+	private ByteBuffer frame(int index) {
+		ByteBuffer frame = mappings.get(frameMapping[index]).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		frame.position(frameOffset[index]);
+		return frame.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private boolean isKeyframe(int index) {
+		return (frame(index).getInt(Integer.BYTES + Long.BYTES) & FieldRecorder.KEYFRAME_FLAG) != 0;
+	}
+
+	/** Decodes a frame, starting from the closest cached frame or keyframe before it. This is only called on the decoder thread. */
+	private Frame decode(int index) throws DataFormatException {
+		Frame cached;
+		synchronized(cache) {
+			cached = cache.get(index);
+		}
+
+		if(cached != null) {
+			return cached;
+		}
+
+		int start = index;
+		Frame base = null;
+
+		while(start > 0 && !isKeyframe(start)) {
+			synchronized(cache) {
+				base = cache.get(start - 1);
+			}
+
+			if(base != null) {
+				break;
+			}
+
+			start--;
+		}
+
+		short[] codes = base == null ? new short[totalValues] : base.codes.clone();
+		Frame result = null;
+
+		for(int i = start; i <= index; i++) {
+			result = apply(i, codes, i == index ? codes : null);
+		}
+
+		synchronized(cache) {
+			cache.put(index, result);
+		}
+
+		return result;
+	}
+
+	/** Applies a frame payload to codes, returning a frame that holds a copy of the codes if one was requested */
+	private Frame apply(int index, short[] codes, short[] keep) throws DataFormatException {
+		ByteBuffer frame = frame(index);
+
+		long tick = frame.getLong(Integer.BYTES);
+		boolean keyframe = (frame.getInt(Integer.BYTES + Long.BYTES) & FieldRecorder.KEYFRAME_FLAG) != 0;
+		int rawLength = frame.getInt(Integer.BYTES * 2 + Long.BYTES);
+		int storedLength = frame.getInt(Integer.BYTES * 3 + Long.BYTES);
+
+		float[] offsets = new float[planeNames.length];
+		float[] scales = new float[planeNames.length];
+		int position = Integer.BYTES * 4 + Long.BYTES;
+		for(int plane = 0; plane < planeNames.length; plane++) {
+			offsets[plane] = frame.getFloat(position);
+			scales[plane] = frame.getFloat(position + Float.BYTES);
+			position += Float.BYTES * 2;
+		}
+
+		frame.position(position).limit(position + storedLength);
+		ByteBuffer payload = frame.slice().order(ByteOrder.LITTLE_ENDIAN);
+
+		if(compression != FieldRecorder.Compression.NONE) {
+			inflater.reset();
+			inflater.setInput(payload);
+
+			raw.clear();
+			while(raw.position() < rawLength && !inflater.finished()) {
+				if(inflater.inflate(raw) == 0 && inflater.needsInput()) {
+					throw new DataFormatException("Frame " + index + " is truncated");
+				}
+			}
+
+			raw.flip();
+			payload = raw;
+		}
+
+		for(int i = 0; i < totalValues; i++) {
+			short value = payload.getShort(i * Short.BYTES);
+			codes[i] = keyframe ? value : (short) (codes[i] + value);
+		}
+
+		return keep == null ? null : new Frame(index, tick, keep, offsets, scales);
+	}
+
+	/** The frame that is currently being shown */
+	public int position() {
+		return position;
+	}
+
+	/** Moves to a frame, clamping it to the length of the recording */
+	public void seek(int frame) {
+		position = Math.max(0, Math.min(frame, frameCount - 1));
+	}
+
+	/** The number of frames that are moved each step, this is negative when playing in reverse */
+	public int speed() {
+		return speed;
+	}
+
+	public void setSpeed(int speed) {
+		this.speed = speed;
+	}
+
+	public boolean isPaused() {
+		return paused;
+	}
+
+	public void setPaused(boolean paused) {
+		this.paused = paused;
+	}
+
+	/** Moves the playback position on by one step, stopping at either end of the recording */
+	public void advance() {
+		if(!paused) {
+			seek(position + speed);
+		}
+	}
+
+	/**
+	 * Returns the frame at the current position if it has been decoded, otherwise this starts decoding it and returns the
+	 * last frame that was shown. This never waits for a frame to be decoded.
+	 */
+	Frame currentFrame() {
+		int target = position;
+		Frame frame;
+
+		synchronized(cache) {
+			frame = cache.get(target);
+		}
+
+		if(frame != null) {
+			displayed = frame;
+			prefetch(target + speed);
+			return frame;
+		}
+
+		prefetch(target);
+		return displayed;
+	}
+
+	private void prefetch(int index) {
+		if(index < 0 || index >= frameCount) {
+			return;
+		}
+
+		synchronized(this) {
+			if(requested == index) {
+				return;
+			}
+
+			requested = index;
+		}
+
+		decoder.execute(() -> {
+			try {
+				decode(index);
+			} catch(DataFormatException e) {
+				System.err.println("Unable to decode frame " + index + ": " + e.getMessage());
+			}
+		});
+	}
+
+	/** Cycles through the dye, velocity, pressure and then each scalar on its own, the same as the live view */
+	public void switchColourMode() {
+		colourMode = (colourMode + 1) % planeNames.length;
+	}
+	
+	/** Draws the current frame, it is only rendered again when the frame or the colour mode changes */
+	public void paint(Graphics g, Dimension dimension) {
+		Frame frame = currentFrame();
+		
+		g.setFont(new Font("Dialog", Font.BOLD, 20));
+		
+		if(frame == null) {
+			g.setColor(Color.WHITE);
+			g.drawString(frameCount == 0 ? "Empty recording" : "Decoding...", 20, 30);
+			return;
+		}
+		
+		int mode = colourMode;
+		boolean scalars = mode == 0 || mode >= 3;
+		
+		if(scalars && planeNames.length <= 3) {
+			mode = 1;
+			scalars = false;
+		}
+		
+		int plane = scalars ? 3 : 0;
+		int width = planeWidths[plane];
+		int height = planeHeights[plane];
+		
+		if(plane != pyramidPlane) {
+			pyramid = new MipPyramid(width, height);
+			pyramidPlane = plane;
+		}
+		
+		if(frame != drawnFrame || mode != drawnMode) {
+			pyramid.invalidateAll();
+			drawnFrame = frame;
+			drawnMode = mode;
+		}
+		
+		int level = pyramid.levelFor(Math.min(width / dimension.getWidth(), height / dimension.getHeight()));
+		List<MipPyramid.Tile> tiles = pyramid.visibleTiles(level, 0, 0, width, height);
+		MipPyramid.CellColour colours = cellColours(frame, mode, plane);
+		
+		for(MipPyramid.Tile tile : tiles) {
+			if(!tile.isValid()) {
+				pyramid.render(tile, colours);
+			}
+		}
+		
+		pyramid.draw(g, tiles, 0, 0, dimension.getWidth() / width, dimension.getHeight() / height);
+		
+		//The timeline along the bottom of the view
+		int barTop = (int) dimension.getHeight() - 8;
+		g.setColor(Color.DARK_GRAY);
+		g.fillRect(0, barTop, (int) dimension.getWidth(), 8);
+		g.setColor(Color.WHITE);
+		g.fillRect(0, barTop, (int) (dimension.getWidth() * (frame.index + 1) / frameCount), 8);
+		
+		g.drawString(String.format("Frame %d / %d  Tick %d  Speed %dx%s", frame.index + 1, frameCount, frame.tick, speed, 
+				paused ? "  Paused" : ""), 20, 30);
+	}
+
+	/** The colours of the cells of plane in a colour mode, these are the same as those of the live view */
+	private MipPyramid.CellColour cellColours(Frame frame, int mode, int plane) {
+		int gridWidth = planeWidths[0];
+		int gridHeight = planeHeights[0];
+		int scale = planeWidths[plane] / gridWidth;
+		
+		return (x, y) -> {
+			if(FluidCellArray.isSolid(x / scale, y / scale, gridWidth, gridHeight)) {
+				return ColourMap.BLACK;
+			} else if(mode == 0) {
+				return ColourMap.dye(value(frame, 3, x, y), 
+						planeNames.length > 4 ? value(frame, 4, x, y) : 0.0, 
+						planeNames.length > 5 ? value(frame, 5, x, y) : 0.0);
+			} else if(mode == 1) {
+				return ColourMap.velocity(value(frame, 0, x, y), value(frame, 1, x, y));
+			} else if(mode == 2) {
+				return ColourMap.pressure(value(frame, 2, x, y));
+			} else {
+				return ColourMap.scalar(value(frame, mode, x, y));
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		decoder.shutdownNow();
+		channel.close();
+	}
+}
@@ -0,0 +1,96 @@
+package brownshome.fluid2d;
+
+import java.awt.Frame;
+import java.awt.Window;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.function.LongSupplier;
+
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Repaints a component when there is a new frame to show. Painting is limited to a fraction of the time, based on how
+ * long the recent paints took, so that drawing does not take cores away from the simulation. Nothing is painted while
+ * the component is hidden or its window is minimised.
+ */
+final class RepaintScheduler {
+	/** The largest fraction of the time that is spent painting */
+	private static final double PAINT_FRACTION = 0.1;
+
+	/** The shortest and longest times between repaints, in milliseconds */
+	private static final int MIN_INTERVAL = 16;
+	private static final int MAX_INTERVAL = 500;
+
+	private final JComponent component;
+	private final LongSupplier frame;
+	private final Timer timer;
+
+	private Window window;
+	private long paintedFrame = -1;
+	private double averageCost = 0;
+
+	/** Repaints component whenever the value of frame changes */
+	RepaintScheduler(JComponent component, LongSupplier frame) {
+		this.component = component;
+		this.frame = frame;
+
+		timer = new Timer(MIN_INTERVAL, e -> poll());
+
+		component.addHierarchyListener(e -> {
+			if((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0) {
+				watchWindow();
+				updateRunning();
+			}
+		});
+	}
+
+	private void watchWindow() {
+		Window ancestor = SwingUtilities.getWindowAncestor(component);
+
+		if(ancestor != null && ancestor != window) {
+			window = ancestor;
+			window.addWindowListener(new WindowAdapter() {
+				@Override public void windowIconified(WindowEvent e) {
+					updateRunning();
+				}
+
+				@Override public void windowDeiconified(WindowEvent e) {
+					updateRunning();
+				}
+			});
+		}
+	}
+
+	private boolean isVisible() {
+		boolean minimised = window instanceof Frame && (((Frame) window).getExtendedState() & Frame.ICONIFIED) != 0;
+		return component.isShowing() && !minimised;
+	}
+
+	private void updateRunning() {
+		if(isVisible()) {
+			timer.start();
+		} else {
+			timer.stop();
+		}
+	}
+
+	private void poll() {
+		long current = frame.getAsLong();
+
+		if(current != paintedFrame && isVisible()) {
+			paintedFrame = current;
+			component.repaint();
+		}
+	}
+
+	/** Records how long a paint took, in nanoseconds, and slows the repaints down if painting is taking too long */
+	void painted(long nanos) {
+		averageCost = averageCost == 0 ? nanos : averageCost * 0.8 + nanos * 0.2;
+
+		int interval = (int) (averageCost / PAINT_FRACTION / 1e6);
+		timer.setDelay(Math.min(MAX_INTERVAL, Math.max(MIN_INTERVAL, interval)));
+	}
+}
@@ -0,0 +1,36 @@
+package brownshome.fluid2d;
+
+/** A passive quantity such as a dye or a temperature that is carried along by the fluid */
+public final class Scalar {
+	@FunctionalInterface
+	public interface Initialiser {
+		/** Returns the starting value of the cell with its corner at (u, v), where both coordinates run from 0 to 1 across the grid */
+		double value(double u, double v);
+	}
+	
+	final String name;
+	final Initialiser initialiser;
+	
+	public Scalar(String name, Initialiser initialiser) {
+		this.name = name;
+		this.initialiser = initialiser;
+	}
+	
+	/** Creates a scalar that is zero everywhere */
+	public Scalar(String name) {
+		this(name, (u, v) -> 0.0);
+	}
+	
+	public String name() {
+		return name;
+	}
+	
+	/** The red, green and blue checkerboard dye that is shown by default */
+	public static Scalar[] defaultColours() {
+		return new Scalar[] {
+			new Scalar("red", (u, v) -> (int) (u * 10) % 2 == 0 ? 1.0 : 0.0),
+			new Scalar("green", (u, v) -> 1.0),
+			new Scalar("blue", (u, v) -> (int) (v * 10) % 2 == 0 ? 1.0 : 0.0)
+		};
+	}
+}
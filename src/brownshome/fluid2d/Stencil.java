@@ -0,0 +1,268 @@
+package brownshome.fluid2d;
+
+import java.util.Arrays;
+
+/**
+ * A kernel that sets some fields of each cell from the fields of that cell and the four cells next to it. Each output is
+ * the sum of its terms, divided by a divisor, where a term is a field of one of the five cells multiplied by a
+ * coefficient. The terms are summed in the order they are declared.
+ * <pre>
+ * new Stencil(Boundary.CLAMP)
+ *     .output(TMP_PRESSURE_OFFSET, 4.0)
+ *     .term(Neighbour.TOP, PRESSURE_OFFSET, 1.0)
+ *     ...
+ * </pre>
+ * A stencil is run a row at a time by {@link #row(CellStorage, int, int, int)}, which steps through the row by index. The
+ * passes that run it are split into blocks of rows and tiles by the simulation, and as a stencil only reads one cell
+ * beyond the cells it writes it can be run by the wavefront solver and over the active tiles. An output may not be read
+ * by any term, so the result does not depend on the order the cells are visited in.
+ * <p>
+ * An operation on the cells of a row can be fused onto the end of a stencil with {@link #then(RowOp, int...)}, so that it
+ * is run in the same pass. It is run on each row straight after the stencil, so it may not write any field that the
+ * stencil reads from the cells next to it.
+ */
+final class Stencil {
+	/** The cells that a term can read */
+	enum Neighbour {
+		CENTRE(0, 0), LEFT(-1, 0), RIGHT(1, 0), BOTTOM(0, -1), TOP(0, 1);
+
+		final int dx;
+		final int dy;
+
+		Neighbour(int dx, int dy) {
+			this.dx = dx;
+			this.dy = dy;
+		}
+	}
+
+	private static final Neighbour[] NEIGHBOURS = Neighbour.values();
+
+	/** The value of a field in a cell outside the grid */
+	enum Boundary {
+		/** The value in the nearest cell of the grid */
+		CLAMP,
+
+		/** Zero */
+		ZERO
+	}
+
+	@FunctionalInterface
+	interface RowOp {
+		/** Runs over the cells [startX, endX) of row y */
+		void apply(int y, int startX, int endX);
+	}
+
+	private final Boundary boundary;
+
+	private int outputs = 0;
+	private int[] outputOffsets = new int[0];
+	private double[] divisors = new double[0];
+
+	/** The terms of output o are [firstTerm[o], firstTerm[o + 1]) */
+	private int[] firstTerm = new int[1];
+
+	private int terms = 0;
+	private int[] neighbours = new int[0];
+	private int[] offsets = new int[0];
+	private double[] coefficients = new double[0];
+
+	private RowOp then;
+	private int[] thenWrites = new int[0];
+
+	/** 
+	 * The arrays that a row is run with, for each thread that runs a stencil. They are reused from row to row so that
+	 * running a row does not allocate.
+	 */
+	private static final class Scratch {
+		/** The sums of the terms along a row */
+		double[] sums = new double[0];
+
+		/** The distance from a cell to the value that each term reads, and the coefficient of each term, in this row */
+		long[] deltas = new long[0];
+		double[] coefficients = new double[0];
+	}
+
+	private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+	Stencil(Boundary boundary) {
+		this.boundary = boundary;
+	}
+
+	/** Starts a new output, the terms added after this are summed into offset and the sum is divided by divisor */
+	Stencil output(int offset, double divisor) {
+		for(int term = 0; term < terms; term++) {
+			if(offsets[term] == offset) {
+				throw new IllegalArgumentException("Output " + offset + " is read by the stencil");
+			}
+		}
+
+		outputOffsets = Arrays.copyOf(outputOffsets, outputs + 1);
+		divisors = Arrays.copyOf(divisors, outputs + 1);
+		firstTerm = Arrays.copyOf(firstTerm, outputs + 2);
+
+		outputOffsets[outputs] = offset;
+		divisors[outputs] = divisor;
+		outputs++;
+		firstTerm[outputs] = terms;
+
+		return this;
+	}
+
+	/** Starts a new output that is the sum of its terms */
+	Stencil output(int offset) {
+		return output(offset, 1.0);
+	}
+
+	/** Adds coefficient times the field at offset of the neighbour to the current output */
+	Stencil term(Neighbour neighbour, int offset, double coefficient) {
+		if(outputs == 0) {
+			throw new IllegalStateException("A term must follow an output");
+		}
+
+		for(int output = 0; output < outputs; output++) {
+			if(outputOffsets[output] == offset) {
+				throw new IllegalArgumentException("Field " + offset + " is an output of the stencil");
+			}
+		}
+
+		if(neighbour != Neighbour.CENTRE) {
+			checkNotWritten(offset);
+		}
+
+		neighbours = Arrays.copyOf(neighbours, terms + 1);
+		offsets = Arrays.copyOf(offsets, terms + 1);
+		coefficients = Arrays.copyOf(coefficients, terms + 1);
+
+		neighbours[terms] = neighbour.ordinal();
+		offsets[terms] = offset;
+		coefficients[terms] = coefficient;
+		terms++;
+		firstTerm[outputs] = terms;
+
+		return this;
+	}
+
+	/** Fuses op onto the end of the stencil, writes are the fields that it writes */
+	Stencil then(RowOp op, int... writes) {
+		if(then != null) {
+			throw new IllegalStateException("The stencil already has an operation fused onto it");
+		}
+
+		thenWrites = writes.clone();
+
+		for(int term = 0; term < terms; term++) {
+			if(neighbours[term] != Neighbour.CENTRE.ordinal()) {
+				checkNotWritten(offsets[term]);
+			}
+		}
+
+		then = op;
+		return this;
+	}
+
+	private void checkNotWritten(int offset) {
+		for(int write : thenWrites) {
+			if(write == offset) {
+				throw new IllegalArgumentException("Field " + offset + " is read from the cells next to a cell and written by a fused operation");
+			}
+		}
+	}
+
+	/** Runs the stencil over the cells [startX, endX) of row y of grid, followed by any fused operation */
+	void row(CellStorage grid, int y, int startX, int endX) {
+		int cellSize = grid.cellSize;
+		long index = grid.index(startX, y);
+
+		//Away from the ends of the row each term is a fixed distance from the cell, a term outside the grid that is zero
+		//reads the cell itself with a coefficient of zero
+		Scratch scratch = SCRATCH.get();
+
+		if(scratch.deltas.length < terms) {
+			scratch.deltas = new long[terms];
+			scratch.coefficients = new double[terms];
+		}
+
+		long[] deltas = scratch.deltas;
+		double[] rowCoefficients = scratch.coefficients;
+		System.arraycopy(coefficients, 0, rowCoefficients, 0, terms);
+
+		for(int term = 0; term < terms; term++) {
+			Neighbour neighbour = NEIGHBOURS[neighbours[term]];
+			int neighbourY = y + neighbour.dy;
+
+			if(neighbourY < 0 || neighbourY >= grid.height) {
+				if(boundary == Boundary.ZERO) {
+					rowCoefficients[term] = 0.0;
+					neighbourY = y;
+				}
+			}
+
+			deltas[term] = grid.clampedIndex(startX, neighbourY) - index + neighbour.dx * cellSize + offsets[term];
+		}
+
+		//The inside of the row is summed a term at a time, so each inner loop is a single strided read
+		int insideStart = Math.max(startX, 1);
+		int insideEnd = Math.min(endX, grid.width - 1);
+		int length = Math.max(0, insideEnd - insideStart);
+		long insideIndex = index + (long) (insideStart - startX) * cellSize;
+
+		if(scratch.sums.length < length) {
+			scratch.sums = new double[length];
+		}
+
+		double[] sums = scratch.sums;
+
+		for(int output = 0; output < outputs; output++) {
+			Arrays.fill(sums, 0, length, 0.0);
+
+			for(int term = firstTerm[output]; term < firstTerm[output + 1]; term++) {
+				double coefficient = rowCoefficients[term];
+				long cell = insideIndex + deltas[term];
+
+				for(int i = 0; i < length; i++, cell += cellSize) {
+					sums[i] += coefficient * grid.get(cell);
+				}
+			}
+
+			double divisor = divisors[output];
+			long cell = insideIndex + outputOffsets[output];
+
+			for(int i = 0; i < length; i++, cell += cellSize) {
+				grid.set(cell, sums[i] / divisor);
+			}
+		}
+
+		if(startX == 0) {
+			edgeCell(grid, 0, y, index);
+		}
+
+		if(endX == grid.width && grid.width > 1) {
+			edgeCell(grid, grid.width - 1, y, index + (long) (grid.width - 1 - startX) * cellSize);
+		}
+
+		if(then != null) {
+			then.apply(y, startX, endX);
+		}
+	}
+
+	/** Runs the stencil on a cell at the end of a row, finding each neighbour from its coordinates */
+	private void edgeCell(CellStorage grid, int x, int y, long index) {
+		for(int output = 0; output < outputs; output++) {
+			double sum = 0.0;
+
+			for(int term = firstTerm[output]; term < firstTerm[output + 1]; term++) {
+				Neighbour neighbour = NEIGHBOURS[neighbours[term]];
+				int neighbourX = x + neighbour.dx;
+				int neighbourY = y + neighbour.dy;
+
+				if(boundary == Boundary.ZERO && (neighbourX < 0 || neighbourX >= grid.width || neighbourY < 0 || neighbourY >= grid.height)) {
+					continue;
+				}
+
+				sum += coefficients[term] * grid.get(grid.clampedIndex(neighbourX, neighbourY) + offsets[term]);
+			}
+
+			grid.set(index + outputOffsets[output], sum / divisors[output]);
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package brownshome.fluid2d;
+
+/** Where the grids of a simulation are stored */
+public enum StorageMode {
+	/** Arrays on the Java heap */
+	HEAP,
+	
+	/** 
+	 * Page aligned native memory. This is not scanned by the garbage collector or counted against the heap size, and the
+	 * grids can be handed to native code or uploaded to the GPU without a copy.
+	 */
+	OFF_HEAP
+}
@@ -0,0 +1,91 @@
+package brownshome.fluid2d;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * A set of tasks that each declare the resources that they read and write. A task waits for the last task added before
+ * it that wrote anything it uses, and a task that writes a resource also waits for the tasks added before it that read
+ * it. Tasks that share no resources run at the same time. The result is the same as running the tasks in the order they
+ * were added.
+ */
+final class TaskGraph<R> {
+	private final List<CompletableFuture<Void>> tasks = new ArrayList<>();
+	private final List<Runnable> actions = new ArrayList<>();
+	private final List<List<Integer>> dependencies = new ArrayList<>();
+
+	private final Map<R, Integer> lastWriter = new HashMap<>();
+	private final Map<R, List<Integer>> readers = new HashMap<>();
+
+	/** Adds a task, a resource that is both read and written only needs to be in writes */
+	TaskGraph<R> add(Set<R> reads, Set<R> writes, Runnable action) {
+		int task = actions.size();
+		List<Integer> waitsOn = new ArrayList<>();
+
+		for(R resource : reads) {
+			Integer writer = lastWriter.get(resource);
+
+			if(writer != null) {
+				waitsOn.add(writer);
+			}
+		}
+
+		for(R resource : writes) {
+			Integer writer = lastWriter.get(resource);
+
+			if(writer != null) {
+				waitsOn.add(writer);
+			}
+
+			waitsOn.addAll(readers.getOrDefault(resource, List.of()));
+		}
+
+		for(R resource : reads) {
+			readers.computeIfAbsent(resource, r -> new ArrayList<>()).add(task);
+		}
+
+		for(R resource : writes) {
+			lastWriter.put(resource, task);
+			readers.remove(resource);
+		}
+
+		actions.add(action);
+		dependencies.add(waitsOn);
+
+		return this;
+	}
+
+	/** Runs the tasks on executor, returning when all of them have finished */
+	void run(Executor executor) {
+		for(int task = 0; task < actions.size(); task++) {
+			List<Integer> waitsOn = dependencies.get(task);
+			CompletableFuture<?>[] before = new CompletableFuture<?>[waitsOn.size()];
+
+			for(int i = 0; i < before.length; i++) {
+				before[i] = tasks.get(waitsOn.get(i));
+			}
+
+			tasks.add(CompletableFuture.allOf(before).thenRunAsync(actions.get(task), executor));
+		}
+
+		try {
+			CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+		} catch(CompletionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			} else if(e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+
+			throw e;
+		} finally {
+			tasks.clear();
+		}
+	}
+}
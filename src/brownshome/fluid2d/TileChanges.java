@@ -0,0 +1,130 @@
+package brownshome.fluid2d;
+
+/**
+ * Tracks how much each tile of the simulation has changed since it was last drawn, so that only the tiles that have
+ * visibly changed need to be drawn again. There is a change for each colour mode, measured as the most that a colour
+ * component of that mode could have changed, from 0 to 1.
+ * <p>
+ * The change in each tick is the largest change of any cell in the tile, and the changes of each tick are added up. This
+ * sum is never less than the change since the tile was drawn, so slow drifts are not missed.
+ */
+final class TileChanges {
+	/** The width and height of a tile in cells of the velocity grid */
+	static final int TILE_SIZE = 16;
+
+	final int tilesX;
+	final int tilesY;
+
+	private final int gridWidth;
+	private final int gridHeight;
+	private final int scale;
+	private final int channels;
+
+	/** 
+	 * The values at the end of the last tick, the velocity and pressure of each cell, then every channel of the dye. These
+	 * are banded like the grids, so that any grid size can be held.
+	 */
+	private final CellStorage fields;
+	private final CellStorage scalars;
+
+	/** The change of each tile, indexed by colour mode */
+	private final float[][] changes;
+
+	TileChanges(FluidCellArray array, DyeField dye, int gridWidth, int gridHeight) {
+		this.gridWidth = gridWidth;
+		this.gridHeight = gridHeight;
+		this.scale = dye.scale;
+		this.channels = dye.channels();
+
+		tilesX = (gridWidth - 1) / TILE_SIZE + 1;
+		tilesY = (gridHeight - 1) / TILE_SIZE + 1;
+
+		fields = CellStorage.allocate(gridWidth, gridHeight, 3, StorageMode.HEAP);
+		scalars = CellStorage.allocate(dye.width, dye.height, channels, StorageMode.HEAP);
+		changes = new float[3 + channels][tilesX * tilesY];
+
+		update(array, dye, 0, tilesY);
+	}
+
+	/** The tile holding the cell (x, y) of the velocity grid */
+	int tile(int x, int y) {
+		return x / TILE_SIZE + y / TILE_SIZE * tilesX;
+	}
+
+	float change(int colourMode, int tile) {
+		return changes[colourMode][tile];
+	}
+
+	/** Marks a tile as drawn */
+	void clear(int tile) {
+		for(float[] change : changes) {
+			change[tile] = 0f;
+		}
+	}
+
+	/** Adds the changes since the last update to the tiles in rows [startRow, endRow), and stores the new values */
+	void update(FluidCellArray array, DyeField dye, int startRow, int endRow) {
+		float[] velocity = new float[tilesX];
+		float[] pressure = new float[tilesX];
+		float[][] scalar = new float[channels][tilesX];
+
+		for(int tileRow = startRow; tileRow < endRow; tileRow++) {
+			int endY = Math.min(gridHeight, (tileRow + 1) * TILE_SIZE);
+
+			for(int y = tileRow * TILE_SIZE; y < endY; y++) {
+				for(int x = 0; x < gridWidth; x++) {
+					long index = fields.index(x, y);
+					int tile = x / TILE_SIZE;
+
+					double vx = array.value(x, y, FluidCellArray.VELOCITY_OFFSET);
+					double vy = array.value(x, y, FluidCellArray.VELOCITY_OFFSET + 1);
+					double p = array.value(x, y, FluidCellArray.PRESSURE_OFFSET);
+
+					velocity[tile] = Math.max(velocity[tile], (float) Math.max(Math.abs(vx - fields.get(index)), Math.abs(vy - fields.get(index + 1))));
+					pressure[tile] = Math.max(pressure[tile], (float) Math.abs(p - fields.get(index + 2)));
+
+					fields.set(index, vx);
+					fields.set(index + 1, vy);
+					fields.set(index + 2, p);
+				}
+			}
+
+			int dyeTile = TILE_SIZE * scale;
+			int endDyeY = Math.min(dye.height, (tileRow + 1) * dyeTile);
+
+			for(int y = tileRow * dyeTile; y < endDyeY; y++) {
+				for(int x = 0; x < dye.width; x++) {
+					long index = scalars.index(x, y);
+					int tile = x / dyeTile;
+
+					for(int channel = 0; channel < channels; channel++) {
+						double value = dye.value(x, y, channel);
+						scalar[channel][tile] = Math.max(scalar[channel][tile], (float) Math.abs(value - scalars.get(index + channel)));
+						scalars.set(index + channel, value);
+					}
+				}
+			}
+
+			for(int column = 0; column < tilesX; column++) {
+				int tile = column + tileRow * tilesX;
+				float colour = 0f;
+
+				for(int channel = 0; channel < Math.min(3, channels); channel++) {
+					colour = Math.max(colour, scalar[channel][column]);
+				}
+
+				changes[0][tile] += colour * ColourMap.DYE_SLOPE;
+				changes[1][tile] += velocity[column] * ColourMap.VELOCITY_SLOPE;
+				changes[2][tile] += pressure[column] * ColourMap.PRESSURE_SLOPE;
+
+				for(int channel = 0; channel < channels; channel++) {
+					changes[3 + channel][tile] += scalar[channel][column] * ColourMap.SCALAR_SLOPE;
+					scalar[channel][column] = 0f;
+				}
+
+				velocity[column] = 0f;
+				pressure[column] = 0f;
+			}
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package brownshome.fluid2d;
+
+import java.util.SplittableRandom;
+
+/**
+ * A set of passive particles that are carried along by the velocity field. The particles are stored as parallel primitive
+ * arrays so that millions of them can be moved without allocating.
+ */
+class TracerParticles {
+	private final float[] positionX;
+	private final float[] positionY;
+	private final int width;
+	private final int height;
+
+	TracerParticles(int count, int width, int height, long seed) {
+		this.width = width;
+		this.height = height;
+
+		positionX = new float[count];
+		positionY = new float[count];
+
+		SplittableRandom random = new SplittableRandom(seed);
+		for(int i = 0; i < count; i++) {
+			positionX[i] = (float) random.nextDouble(0, width - 1);
+			positionY[i] = (float) random.nextDouble(0, height - 1);
+		}
+	}
+
+	int count() {
+		return positionX.length;
+	}
+
+	/** Moves the particles [start, end) through the velocity field using the midpoint method */
+	void advect(FluidCellArray array, int start, int end, double timestep) {
+		double halfStep = timestep * 0.5;
+
+		for(int i = start; i < end; i++) {
+			double x = positionX[i];
+			double y = positionY[i];
+
+			double midX = x + array.sample(x, y, FluidCellArray.VELOCITY_OFFSET) * halfStep;
+			double midY = y + array.sample(x, y, FluidCellArray.VELOCITY_OFFSET + 1) * halfStep;
+
+			x += array.sample(midX, midY, FluidCellArray.VELOCITY_OFFSET) * timestep;
+			y += array.sample(midX, midY, FluidCellArray.VELOCITY_OFFSET + 1) * timestep;
+
+			positionX[i] = (float) Math.min(Math.max(x, 0.0), width - 1);
+			positionY[i] = (float) Math.min(Math.max(y, 0.0), height - 1);
+		}
+	}
+
+	/** Adds the number of particles from [start, end) that lie in each cell to density */
+	void bin(int[] density, int start, int end) {
+		for(int i = start; i < end; i++) {
+			int x = (int) (positionX[i] + 0.5f);
+			int y = (int) (positionY[i] + 0.5f);
+
+			density[x + y * width]++;
+		}
+	}
+}
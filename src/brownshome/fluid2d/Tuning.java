@@ -0,0 +1,271 @@
+package brownshome.fluid2d;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The number of worker threads, the number of blocks that each pass is split into and the size of the active tiles that
+ * a simulation runs with. {@link #forGrid(int, int, int)} finds the fastest of a few candidates by timing short
+ * simulations of the grid, and caches the result in the user's home directory for the machine and grid size so that
+ * later runs start tuned. Each candidate is given a single timed tick after a warm-up tick, so that tuning a large grid
+ * takes a few dozen ticks of it.
+ */
+public final class Tuning {
+	/** The number of worker threads used by a simulation that has not been tuned */
+	static final int DEFAULT_THREADS = 8;
+
+	/** Ticks run on each candidate before it is timed, so that its threads are started and its pages are touched */
+	private static final int WARMUP_TICKS = 1;
+	private static final int TIMED_TICKS = 1;
+
+	/** The largest width and height of the grid that is run to compile the simulation before any candidate is timed */
+	private static final int COMPILE_SIZE = 256;
+	private static final int COMPILE_TICKS = 5;
+
+	/** The number of thread counts tried, halving from the number of processors */
+	private static final int THREAD_COUNTS = 3;
+
+	/** The granularities tried for each thread count, as multiples of the thread count */
+	private static final int[] GRANULARITY_MULTIPLES = { 1, 2, 4, 8 };
+	private static final int[] TILE_SIZES = { 8, 16, 32, 64 };
+
+	private static final double VISCOCITY = 0.001;
+	private static final double TIMESTEP = 0.01;
+
+	private static final Path CACHE = Paths.get(System.getProperty("user.home"), ".fluid2d", "tuning.properties");
+
+	final int threads;
+	final int granularity;
+	final int tileSize;
+
+	public Tuning(int threads, int granularity, int tileSize) {
+		if(threads < 1 || granularity < 1 || tileSize < 1) {
+			throw new IllegalArgumentException(String.format("Invalid tuning: %d threads, granularity %d, tile size %d", threads, granularity, tileSize));
+		}
+
+		this.threads = threads;
+		this.granularity = granularity;
+		this.tileSize = tileSize;
+	}
+
+	public int threads() {
+		return threads;
+	}
+
+	public int granularity() {
+		return granularity;
+	}
+
+	public int tileSize() {
+		return tileSize;
+	}
+
+	/** Returns the cached tuning for this machine and grid, calibrating and caching it if there is none */
+	public static Tuning forGrid(int gridWidth, int gridHeight, int dyeScale) {
+		String key = String.format("%s.%dx%d.%d", machine(), gridWidth, gridHeight, dyeScale);
+		return cached(key, () -> calibrate(gridWidth, gridHeight, dyeScale, null));
+	}
+
+	/**
+	 * Returns the cached tuning for this machine and grid when active tiles are used with the given thresholds, see
+	 * {@link FluidSimulation#setActiveTileThresholds(double, double, double)}. The tile size is tuned as well.
+	 */
+	public static Tuning forGrid(int gridWidth, int gridHeight, int dyeScale, double speed, double dyeGradient, double pressureResidual) {
+		String key = String.format("%s.%dx%d.%d.tiles.%s,%s,%s", machine(), gridWidth, gridHeight, dyeScale, speed, dyeGradient, pressureResidual);
+		return cached(key, () -> calibrate(gridWidth, gridHeight, dyeScale, new double[] { speed, dyeGradient, pressureResidual }));
+	}
+
+	/** Times each thread count and granularity on the grid, and returns the fastest. This does not use the cache. */
+	public static Tuning calibrate(int gridWidth, int gridHeight, int dyeScale) {
+		return calibrate(gridWidth, gridHeight, dyeScale, null);
+	}
+
+	/** Identifies the machine, the cache may be in a home directory that is shared between machines */
+	private static String machine() {
+		String host;
+
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch(UnknownHostException e) {
+			host = "localhost";
+		}
+
+		return host + "." + Runtime.getRuntime().availableProcessors();
+	}
+
+	@FunctionalInterface
+	private interface Calibration {
+		Tuning run();
+	}
+
+	private static synchronized Tuning cached(String key, Calibration calibration) {
+		Properties cache = new Properties();
+
+		if(Files.exists(CACHE)) {
+			try(InputStream in = Files.newInputStream(CACHE)) {
+				cache.load(in);
+			} catch(IOException e) {
+				System.err.println("Unable to read the tuning cache: " + e.getMessage());
+			}
+		}
+
+		Tuning tuning = parse(cache.getProperty(key));
+		if(tuning != null) {
+			return tuning;
+		}
+
+		tuning = calibration.run();
+		cache.setProperty(key, tuning.threads + "," + tuning.granularity + "," + tuning.tileSize);
+
+		try {
+			Files.createDirectories(CACHE.getParent());
+
+			try(OutputStream out = Files.newOutputStream(CACHE)) {
+				cache.store(out, "Simulation tuning for each machine and grid size");
+			}
+		} catch(IOException e) {
+			System.err.println("Unable to write the tuning cache: " + e.getMessage());
+		}
+
+		return tuning;
+	}
+
+	/** Reads a cached tuning, or returns null if there is none or it cannot be read */
+	private static Tuning parse(String value) {
+		if(value == null) {
+			return null;
+		}
+
+		String[] parts = value.split(",");
+
+		try {
+			return new Tuning(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()), Integer.parseInt(parts[2].trim()));
+		} catch(RuntimeException e) {
+			return null;
+		}
+	}
+
+	/** 
+	 * Finds the fastest thread count and granularity, and then the fastest tile size if thresholds is not null. The number
+	 * of processors and its two halvings are tried, so at most twelve candidates are timed, and then four tile sizes.
+	 */
+	private static Tuning calibrate(int gridWidth, int gridHeight, int dyeScale, double[] thresholds) {
+		List<Tuning> candidates = new ArrayList<>();
+		int processors = Runtime.getRuntime().availableProcessors();
+		int lastThreads = 0;
+
+		for(int step = 0; step < THREAD_COUNTS; step++) {
+			int threads = Math.max(1, processors >> step);
+
+			if(threads == lastThreads) {
+				break;
+			}
+
+			int lastGranularity = 0;
+
+			for(int multiple : GRANULARITY_MULTIPLES) {
+				int granularity = Math.min(threads * multiple, gridHeight);
+
+				if(granularity != lastGranularity) {
+					candidates.add(new Tuning(threads, granularity, ActiveTiles.TILE_SIZE));
+					lastGranularity = granularity;
+				}
+			}
+
+			lastThreads = threads;
+		}
+
+		//The simulation is compiled on a small grid first, so that no candidate is timed while it is being compiled
+		compile(candidates.get(0), Math.min(gridWidth, COMPILE_SIZE), Math.min(gridHeight, COMPILE_SIZE), dyeScale, thresholds);
+
+		Tuning best = fastest(candidates, gridWidth, gridHeight, dyeScale, thresholds);
+
+		if(thresholds != null) {
+			candidates.clear();
+
+			for(int tileSize : TILE_SIZES) {
+				candidates.add(new Tuning(best.threads, best.granularity, tileSize));
+			}
+
+			best = fastest(candidates, gridWidth, gridHeight, dyeScale, thresholds);
+		}
+
+		//The standard output may be carrying rendered frames
+		System.err.printf("Tuned a %dx%d grid: %s%n", gridWidth, gridHeight, best);
+		return best;
+	}
+
+	private static Tuning fastest(List<Tuning> candidates, int gridWidth, int gridHeight, int dyeScale, double[] thresholds) {
+		Tuning best = null;
+		long bestTime = Long.MAX_VALUE;
+
+		for(Tuning candidate : candidates) {
+			long time = time(candidate, gridWidth, gridHeight, dyeScale, thresholds);
+
+			if(time < bestTime) {
+				best = candidate;
+				bestTime = time;
+			}
+		}
+
+		return best;
+	}
+
+	/** Runs a few ticks of a new simulation with the given tuning, without timing them */
+	private static void compile(Tuning candidate, int gridWidth, int gridHeight, int dyeScale, double[] thresholds) {
+		FluidSimulation simulation = new FluidSimulation(gridWidth, gridHeight, VISCOCITY, TIMESTEP, candidate, dyeScale);
+
+		try {
+			if(thresholds != null) {
+				simulation.setActiveTileThresholds(thresholds[0], thresholds[1], thresholds[2]);
+			}
+
+			for(int tick = 0; tick < COMPILE_TICKS; tick++) {
+				simulation.tick();
+			}
+		} finally {
+			simulation.shutdown();
+		}
+	}
+
+	/** The fastest of a few ticks of a new simulation with the given tuning, in nanoseconds */
+	private static long time(Tuning candidate, int gridWidth, int gridHeight, int dyeScale, double[] thresholds) {
+		FluidSimulation simulation = new FluidSimulation(gridWidth, gridHeight, VISCOCITY, TIMESTEP, candidate, dyeScale);
+
+		try {
+			if(thresholds != null) {
+				simulation.setActiveTileThresholds(thresholds[0], thresholds[1], thresholds[2]);
+			}
+
+			for(int tick = 0; tick < WARMUP_TICKS; tick++) {
+				simulation.tick();
+			}
+
+			long best = Long.MAX_VALUE;
+
+			for(int tick = 0; tick < TIMED_TICKS; tick++) {
+				long start = System.nanoTime();
+				simulation.tick();
+				best = Math.min(best, System.nanoTime() - start);
+			}
+
+			return best;
+		} finally {
+			simulation.shutdown();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d threads, granularity %d, tile size %d", threads, granularity, tileSize);
+	}
+}
@@ -3,6 +3,16 @@ import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
@@ -10,23 +20,109 @@ import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 
 public class Viewer extends JPanel {
+	/** The number of work groups used unless another number, or auto, is given on the command line */
+	private static final String DEFAULT_WORK_GROUPS = "24";
+	
 	public static void main(String[] args) {
-		int gridSize, workGroups;
+		if(args.length == 2 && args[0].equals("--replay")) {
+			SwingUtilities.invokeLater(() -> {
+				try {
+					show(new Viewer(new RecordingPlayer(Paths.get(args[1]))));
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			
+			return;
+		}
+		
+		if(args.length >= 1 && args[0].equals("--adaptive")) {
+			int gridSize = args.length > 1 ? Integer.parseInt(args[1]) : 150;
+			Tuning tuning = tuning(args.length > 2 ? args[2] : DEFAULT_WORK_GROUPS, gridSize, 1);
+			int maxCellSize = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+			double refinement = args.length > 4 ? Double.parseDouble(args[4]) : 0.05;
+			
+			SwingUtilities.invokeLater(() -> show(new Viewer(new AdaptiveFluidSimulation(gridSize, gridSize, 0.001, tuning, maxCellSize, refinement))));
+			return;
+		}
+		
+		if(args.length >= 4 && args[0].equals("--render")) {
+			try {
+				render(args);
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			
+			System.exit(0);
+		}
+		
+		int gridSize, tracers, dyeScale;
+		String workGroups;
 		
 		if(args.length != 0) {
 			gridSize = Integer.parseInt(args[0]);
-			workGroups = Integer.parseInt(args[1]);
+			workGroups = args[1];
 		} else {
 			gridSize = 150;
-			workGroups = 24;
+			workGroups = DEFAULT_WORK_GROUPS;
 		}
 		
-		SwingUtilities.invokeLater(() -> Viewer.startApplication(gridSize, workGroups));
+		tracers = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+		dyeScale = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+		
+		Tuning tuning = tuning(workGroups, gridSize, dyeScale);
+		
+		SwingUtilities.invokeLater(() -> Viewer.startApplication(gridSize, tuning, tracers, dyeScale));
+	}
+	
+	/** 
+	 * The tuning for a number of work groups given on the command line. If this is auto, the tuning is found by timing the
+	 * grid the first time it is run on this machine, see {@link Tuning#forGrid(int, int, int)}.
+	 */
+	private static Tuning tuning(String workGroups, int gridSize, int dyeScale) {
+		if(workGroups.equals("auto")) {
+			return Tuning.forGrid(gridSize, gridSize, dyeScale);
+		}
+		
+		return new Tuning(Tuning.DEFAULT_THREADS, Integer.parseInt(workGroups), ActiveTiles.TILE_SIZE);
 	}
 	
-	private static void startApplication(int gridSize, int gran) {
-		Viewer viewer = new Viewer(gridSize, gran);
+	/** 
+	 * Runs the simulation without a window, rendering every interval ticks to a directory of numbered images or to the
+	 * standard output if the directory is -. The arguments are --render directory format ticks [gridSize] [workGroups]
+	 * [dyeScale] [interval], where workGroups may be auto.
+	 */
+	private static void render(String[] args) throws IOException {
+		ImageSequenceWriter.Format format = ImageSequenceWriter.Format.valueOf(args[2].toUpperCase());
+		long ticks = Long.parseLong(args[3]);
+		int gridSize = args.length > 4 ? Integer.parseInt(args[4]) : 150;
+		String workGroups = args.length > 5 ? args[5] : DEFAULT_WORK_GROUPS;
+		int dyeScale = args.length > 6 ? Integer.parseInt(args[6]) : 1;
+		int interval = args.length > 7 ? Integer.parseInt(args[7]) : 1;
+		int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		
+		FluidSimulation simulation = new FluidSimulation(gridSize, gridSize, 0.001, 0.0, tuning(workGroups, gridSize, dyeScale), dyeScale);
 		
+		if(args[1].equals("-")) {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out));
+			simulation.renderFrames(out, interval, format, workers);
+		} else {
+			simulation.renderFrames(Paths.get(args[1]), interval, format, workers);
+		}
+		
+		simulation.startTimer();
+		for(long tick = 0; tick < ticks; tick++) {
+			simulation.tick();
+		}
+		
+		simulation.stopRendering();
+	}
+	
+	private static void startApplication(int gridSize, Tuning tuning, int tracers, int dyeScale) {
+		show(new Viewer(gridSize, tuning, tracers, dyeScale));
+	}
+	
+	private static void show(Viewer viewer) {
 		JFrame frame = new JFrame();
 		frame.getContentPane().add(viewer);
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -37,24 +133,108 @@ public class Viewer extends JPanel {
 		frame.addKeyListener(viewer.listener);
 	}
 	
+	/** The flow is treated as steady once the velocity changes by less than this fraction in each of STEADY_TICKS ticks */
+	private static final double STEADY_THRESHOLD = 1e-4;
+	private static final int STEADY_TICKS = 100;
+	private static final long IDLE_PERIOD = 250;
+	
 	private final FluidSimulation simulation;
+	private final RecordingPlayer player;
+	private final AdaptiveFluidSimulation adaptive;
+	private final RepaintScheduler scheduler;
 	private final KeyListener listener;
 	
-	public Viewer(int gridSize, int gran) {
+	public Viewer(int gridSize, int gran, int tracers, int dyeScale) {
+		this(gridSize, new Tuning(Tuning.DEFAULT_THREADS, gran, ActiveTiles.TILE_SIZE), tracers, dyeScale);
+	}
+	
+	public Viewer(int gridSize, Tuning tuning, int tracers, int dyeScale) {
 		super(true);
 		
-		simulation = new FluidSimulation(gridSize, gridSize, 0.001, 0.0, gran);
+		player = null;
+		adaptive = null;
+		simulation = new FluidSimulation(gridSize, gridSize, 0.001, 0.0, tuning, dyeScale);
+		simulation.setTracerCount(tracers);
+		
+		//Once the flow has settled the simulation only ticks a few times a second, leaving the cores free
+		simulation.setSteadyStateDetection(STEADY_THRESHOLD, STEADY_TICKS, IDLE_PERIOD);
 		
 		new Thread("Simulation Thread") {
 			public void run() {
 				simulation.startTimer();
-				while(true) {
-					simulation.tick();
+				try {
+					while(true) {
+						simulation.awaitTick();
+						simulation.tick();
+					}
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
 				}
 			};
 		}.start();
 		
-		new Timer(100, e -> {
+		scheduler = new RepaintScheduler(this, simulation::tickCount);
+		
+		listener = new KeyListener() {
+			@Override
+			public void keyReleased(KeyEvent e) {
+				
+			}
+			
+			@Override public void keyTyped(KeyEvent e) {
+				simulation.switchColourMode();
+				repaint();
+			}
+			
+			@Override public void keyPressed(KeyEvent e) {
+				if(e.getKeyCode() == KeyEvent.VK_HOME) {
+					simulation.resetView();
+					repaint();
+				}
+			}
+		};
+		
+		//The mouse wheel zooms around the cursor, dragging pans and the home key resets the view
+		MouseAdapter navigator = new MouseAdapter() {
+			private int lastX, lastY;
+			
+			@Override public void mousePressed(MouseEvent e) {
+				lastX = e.getX();
+				lastY = e.getY();
+			}
+			
+			@Override public void mouseDragged(MouseEvent e) {
+				simulation.pan((e.getX() - lastX) / (double) getWidth(), (e.getY() - lastY) / (double) getHeight());
+				lastX = e.getX();
+				lastY = e.getY();
+				repaint();
+			}
+			
+			@Override public void mouseWheelMoved(MouseWheelEvent e) {
+				simulation.zoom(Math.pow(1.25, -e.getPreciseWheelRotation()), e.getX() / (double) getWidth(), e.getY() / (double) getHeight());
+				repaint();
+			}
+		};
+		
+		addMouseListener(navigator);
+		addMouseMotionListener(navigator);
+		addMouseWheelListener(navigator);
+	}
+	
+	/** 
+	 * Plays back a recording. Space pauses, the left and right arrows step a single frame, up and down change the speed,
+	 * R reverses and any other key changes the colour mode. Clicking or dragging scrubs through the recording.
+	 */
+	public Viewer(RecordingPlayer player) {
+		super(true);
+		
+		this.simulation = null;
+		this.player = player;
+		this.adaptive = null;
+		this.scheduler = null;
+		
+		new Timer(40, e -> {
+			player.advance();
 			repaint();
 		}).start();
 		
@@ -65,10 +245,91 @@ public class Viewer extends JPanel {
 			}
 			
 			@Override public void keyTyped(KeyEvent e) {
-				simulation.switchColourMode();
+				if(e.getKeyChar() != ' ' && Character.toLowerCase(e.getKeyChar()) != 'r') {
+					player.switchColourMode();
+				}
+			}
+			
+			@Override public void keyPressed(KeyEvent e) {
+				switch(e.getKeyCode()) {
+				case KeyEvent.VK_SPACE:
+					player.setPaused(!player.isPaused());
+					break;
+				case KeyEvent.VK_LEFT:
+					player.setPaused(true);
+					player.seek(player.position() - 1);
+					break;
+				case KeyEvent.VK_RIGHT:
+					player.setPaused(true);
+					player.seek(player.position() + 1);
+					break;
+				case KeyEvent.VK_UP:
+					player.setSpeed(player.speed() * 2);
+					break;
+				case KeyEvent.VK_DOWN:
+					player.setSpeed(Math.abs(player.speed()) == 1 ? player.speed() : player.speed() / 2);
+					break;
+				case KeyEvent.VK_R:
+					player.setSpeed(-player.speed());
+					break;
+				}
+			}
+		};
+		
+		MouseAdapter scrubber = new MouseAdapter() {
+			@Override public void mousePressed(MouseEvent e) {
+				scrub(e);
+			}
+			
+			@Override public void mouseDragged(MouseEvent e) {
+				scrub(e);
+			}
+			
+			private void scrub(MouseEvent e) {
+				player.seek((int) ((long) e.getX() * player.frameCount() / Math.max(1, getWidth())));
+				repaint();
+			}
+		};
+		
+		addMouseListener(scrubber);
+		addMouseMotionListener(scrubber);
+	}
+	
+	/** 
+	 * Runs and shows a simulation on an adaptive grid, started with --adaptive [gridSize] [workGroups] [maxCellSize] 
+	 * [refinement]. Any key switches between the velocity and the pressure.
+	 */
+	public Viewer(AdaptiveFluidSimulation adaptive) {
+		super(true);
+		
+		this.simulation = null;
+		this.player = null;
+		this.adaptive = adaptive;
+		
+		new Thread("Simulation Thread") {
+			public void run() {
+				while(true) {
+					adaptive.tick();
+				}
+			};
+		}.start();
+		
+		scheduler = new RepaintScheduler(this, adaptive::tickCount);
+		
+		listener = new KeyListener() {
+			@Override
+			public void keyReleased(KeyEvent e) {
+				
+			}
+			
+			@Override public void keyTyped(KeyEvent e) {
+				adaptive.switchColourMode();
+				repaint();
 			}
 			
-			@Override public void keyPressed(KeyEvent e) {}
+			@Override public void keyPressed(KeyEvent e) {
+				
+			}
 		};
 	}
 	
@@ -81,6 +342,16 @@ public class Viewer extends JPanel {
 	public void paintComponent(Graphics g) {
 		super.paintComponent(g);
 		
-		simulation.paint(g, getSize());
+		if(player != null) {
+			player.paint(g, getSize());
+		} else if(adaptive != null) {
+			long start = System.nanoTime();
+			adaptive.paint(g, getSize());
+			scheduler.painted(System.nanoTime() - start);
+		} else {
+			long start = System.nanoTime();
+			simulation.paint(g, getSize());
+			scheduler.painted(System.nanoTime() - start);
+		}
 	}
 }
@@ -0,0 +1,73 @@
+package brownshome.fluid2d;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Progress counters for a solver where the grid is split into parts of whole rows, and each part only reads the rows
+ * next to it in the parts above and below. Each part counts the steps it has finished, and before a step it waits for
+ * the two parts next to it to have finished the step before. The parts can drift apart by up to a step from their
+ * neighbours, and by more across the grid, rather than all waiting for the slowest part at every step.
+ */
+final class Wavefront {
+	/** The number of times a waiting part checks its neighbours before it parks */
+	private static final int SPIN_LIMIT = 1 << 10;
+
+	/** The progress of a part that has stopped, so that its neighbours are never held up by it */
+	private static final int STOPPED = Integer.MAX_VALUE;
+
+	private final int parts;
+	private final AtomicIntegerArray progress;
+	private final AtomicReferenceArray<Thread> threads;
+
+	Wavefront(int parts) {
+		this.parts = parts;
+
+		progress = new AtomicIntegerArray(parts);
+		threads = new AtomicReferenceArray<>(parts);
+	}
+
+	/** Called by the thread that runs a part, before it waits on its neighbours */
+	void join(int part) {
+		threads.set(part, Thread.currentThread());
+	}
+
+	/** Waits until the parts next to part have finished step */
+	void await(int part, int step) {
+		for(int spins = 0; !reached(part - 1, step) || !reached(part + 1, step); spins++) {
+			if(spins < SPIN_LIMIT) {
+				Thread.onSpinWait();
+			} else {
+				LockSupport.park(this);
+			}
+		}
+	}
+
+	private boolean reached(int part, int step) {
+		return part < 0 || part >= parts || progress.get(part) >= step;
+	}
+
+	/** Records that part has finished step, and wakes its neighbours if they are waiting on it */
+	void finish(int part, int step) {
+		progress.set(part, step);
+
+		wake(part - 1);
+		wake(part + 1);
+	}
+
+	/** Records that part will take no more steps, so that its neighbours are never held up by it, even if it failed */
+	void stop(int part) {
+		finish(part, STOPPED);
+	}
+
+	private void wake(int part) {
+		if(part >= 0 && part < parts) {
+			Thread thread = threads.get(part);
+
+			if(thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
+	}
+}
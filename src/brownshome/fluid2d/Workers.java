@@ -0,0 +1,100 @@
+package brownshome.fluid2d;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The workers that run the parallel passes of a simulation. Each block of a range is always run by the same worker, so
+ * the rows of a grid stay with one worker from pass to pass, and from tick to tick, keeping them in that worker's cache
+ * and on its NUMA node. The number of workers and blocks are given by a {@link Tuning}.
+ */
+final class Workers {
+	@FunctionalInterface
+	interface RangeCall {
+		void call(int start, int end);
+	}
+
+	private final ExecutorService[] workers;
+	private final int granularity;
+
+	Workers(Tuning tuning) {
+		workers = new ExecutorService[tuning.threads];
+		granularity = tuning.granularity;
+
+		for(int i = 0; i < workers.length; i++) {
+			String name = "Simulation Worker " + i;
+			workers[i] = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, name));
+		}
+	}
+
+	/** The number of workers */
+	int count() {
+		return workers.length;
+	}
+
+	/** Runs task on one of the workers */
+	void submit(int worker, Runnable task) {
+		workers[worker].submit(task);
+	}
+
+	/** Stops the worker threads once they are idle, no more work can be run afterwards */
+	void shutdown() {
+		for(ExecutorService worker : workers) {
+			worker.shutdown();
+		}
+	}
+
+	/** Splits [0, length) into granularity blocks and runs them on the workers, waiting for all of them to finish */
+	void parallelRange(int length, RangeCall func) {
+		parallelRange(length, 1, func);
+	}
+
+	/**
+	 * Splits [0, length) into about granularity blocks and runs them on the workers, waiting for all of them to finish.
+	 * Blocks that are larger than alignment are rounded up to a multiple of it, so that each band of a grid is only
+	 * touched by one block. Each worker is given a run of neighbouring blocks, and the same range is always split the same
+	 * way, so a block of rows is run by the same worker in every pass.
+	 */
+	void parallelRange(int length, int alignment, RangeCall func) {
+		int blockSize = blockSize(length, alignment);
+		int blocks = (length - 1) / blockSize + 1;
+		CountDownLatch latch = new CountDownLatch(blocks);
+
+		for(int block = 0; block < blocks; block++) {
+			final int blockStorage = block;
+
+			workers[owner(block, blocks)].submit(() -> {
+				try {
+					int limit = Math.min(length, blockSize * (blockStorage + 1));
+					func.call(Math.min(length, blockSize * blockStorage), limit);
+				} finally {
+					latch.countDown();
+				}
+			});
+		}
+
+		await(latch);
+	}
+
+	/** The size of the blocks that {@link #parallelRange(int, int, RangeCall)} splits [0, length) into */
+	int blockSize(int length, int alignment) {
+		int evenSize = (length - 1) / granularity + 1;
+		return evenSize > alignment ? (evenSize + alignment - 1) / alignment * alignment : evenSize;
+	}
+
+	/** The worker that runs a block when a range is split into blocks */
+	int owner(int block, int blocks) {
+		return block * workers.length / blocks;
+	}
+
+	/** Waits for the work counted by latch to finish */
+	static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+}